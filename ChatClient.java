@@ -5,7 +5,13 @@ import javax.swing.*;
 import javax.swing.event.*;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.Scanner;
 
 /**
@@ -23,11 +29,29 @@ public class ChatClient {
 
    private static final String DEFAULT_SERVER_HOST = "localhost"; //default server address
    private static final int DEFAULT_SERVER_PORT = 5000; //default communicating port
+   private static final int RECONNECT_BASE_DELAY = 2000; //first wait (ms) before reconnecting to the server
+   private static final int RECONNECT_MAX_DELAY = 60000; //longest wait (ms) between reconnect attempts
+   private static final int SNAPSHOT_INTERVAL = 30000; //ms between saves of the list while it changes
+   private static final int PING_INTERVAL = 60000; //ms between pings that time the round trip to the server
+   private static final int QUALITY_REPAINT = 5000; //ms between redraws of the round trips in the list
+   private static final int CONNECT_STAGGER = 250; //ms between starting attempts to the addresses of a host
+   public static final int MAX_LINE_LENGTH = 8192; //longest line accepted from the server or in a handshake
+   
+   //deadlines (ms) for opening a connection and for the handshake on it, set with -Dchat.connectTimeout=...
+   public static final int CONNECT_TIMEOUT = Integer.getInteger("chat.connectTimeout", 10000);
+   public static final int HANDSHAKE_TIMEOUT = Integer.getInteger("chat.handshakeTimeout", 10000);
    
    private static Socket connectionToServer;
    private static ServerSocket listeningSocket;
+   private static ServerSocketChannel localListener;  // Chat requests from clients on this machine, or null.
    private static String secret;  // This client's secret, provided by the server.
    private static String clientName;  // This client's name.
+   private static String serverHost;  // Where the server is, kept for reconnecting.
+   private static int serverPort;
+   private static volatile String rosterVersion;  // Version of the last client list received from the server.
+   private static volatile String contacts;  // Names to get presence news about, separated by "~", null for all.
+   private static volatile String rosterContacts;  // The contacts rosterVersion was taken under.
+   private static volatile String serverContacts;  // The contacts the server applies, as far as answers show.
    
    private static boolean running;  // If the connection running
    
@@ -39,6 +63,141 @@ public class ChatClient {
       return running;
    }   
    
+   //connect over the local socket at path when host is this machine and something listens there,
+   //otherwise to host:port over TCP
+   public static Socket connect(String host, int port, Path local) throws IOException {
+      Socket socket = LocalSockets.connect(host, local);
+      return socket != null ? socket : connect(host, port);
+   }
+   
+   //open a socket to host:port. When the name has several addresses (IPv4 and IPv6) they are tried in
+   //parallel, each one CONNECT_STAGGER ms after the one before or as soon as it failed, and the first
+   //that connects is kept. Fails after CONNECT_TIMEOUT ms; interrupting the thread cancels it.
+   public static Socket connect(String host, int port) throws IOException {
+      InetAddress[] addresses = InetAddress.getAllByName(host);
+      ArrayList<InetAddress> order = new ArrayList<InetAddress>(); //alternate the address families
+      ArrayList<InetAddress> v4 = new ArrayList<InetAddress>();
+      ArrayList<InetAddress> v6 = new ArrayList<InetAddress>();
+      for (InetAddress address : addresses)
+         (address instanceof Inet6Address ? v6 : v4).add(address);
+      ArrayList<InetAddress> first = addresses[0] instanceof Inet6Address ? v6 : v4;
+      ArrayList<InetAddress> second = first == v6 ? v4 : v6;
+      for (int i = 0; i < Math.max(v4.size(), v6.size()); i++) {
+         if (i < first.size())
+            order.add(first.get(i));
+         if (i < second.size())
+            order.add(second.get(i));
+      }
+      long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+      Selector selector = Selector.open();
+      ArrayList<SocketChannel> attempts = new ArrayList<SocketChannel>();
+      SocketChannel connected = null;
+      IOException error = null;
+      try {
+         int next = 0;
+         int pending = 0;
+         long nextStart = 0;
+         while (connected == null) {
+            long now = System.currentTimeMillis();
+            if (next < order.size() && (pending == 0 || now >= nextStart)) { //start the next attempt
+               SocketChannel channel = SocketChannel.open();
+               attempts.add(channel);
+               channel.configureBlocking(false);
+               try {
+                  if (channel.connect(new InetSocketAddress(order.get(next++), port))) {
+                     connected = channel;
+                     break;
+                  }
+                  channel.register(selector, SelectionKey.OP_CONNECT);
+                  pending++;
+               }
+               catch (IOException e) {
+                  error = e;
+                  channel.close();
+               }
+               nextStart = now + CONNECT_STAGGER;
+               continue;
+            }
+            if (pending == 0)
+               throw error != null ? error : new ConnectException("No address to connect to for " + host);
+            if (now >= deadline)
+               throw new SocketTimeoutException("Connection to " + host + " timed out");
+            long wait = deadline - now;
+            if (next < order.size())
+               wait = Math.min(wait, Math.max(nextStart - now, 1));
+            selector.select(wait);
+            if (Thread.interrupted())
+               throw new InterruptedIOException("Connection cancelled");
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext() && connected == null) {
+               SelectionKey key = keys.next();
+               keys.remove();
+               SocketChannel channel = (SocketChannel)key.channel();
+               try {
+                  if (channel.finishConnect())
+                     connected = channel;
+               }
+               catch (IOException e) { //this address failed, don't wait to try the next one
+                  error = e;
+                  key.cancel();
+                  channel.close();
+                  pending--;
+                  nextStart = 0;
+               }
+            }
+         }
+      }
+      finally {
+         selector.close();
+         for (SocketChannel channel : attempts)
+            if (channel != connected)
+               channel.close();
+      }
+      connected.configureBlocking(true);
+      return connected.socket();
+   }
+   
+   static boolean sameContacts(String a, String b) {
+      return a == null ? b == null : a.equals(b);
+   }
+   
+   //handshake with the server over a new connection and read this client's secret
+   //resumeFrom is the version of the client list seen before, or null to get the full list
+   //fails if the server does not answer within HANDSHAKE_TIMEOUT
+   private static void handshake(Socket socket, LineReader in, PrintWriter out, String resumeFrom)
+                                                                                  throws Exception {
+      socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+      if (resumeFrom != null && ! sameContacts(rosterContacts, contacts))
+         resumeFrom = null; //the changes since that version left out names the contacts have now
+      serverContacts = contacts;
+      String hello = "ChatClient"; //handshake, with the version to resume from and the contacts if there are
+      if (resumeFrom != null || contacts != null)
+         hello += " " + (resumeFrom == null ? "-" : resumeFrom);
+      if (contacts != null)
+         hello += " " + contacts;
+      out.println(hello); //send handshake to server to prove identity
+      out.flush();
+      if (out.checkError())
+         throw new Exception("Error while sending identification info to server.");
+      String input = in.readLine();
+      if ("busy".equals(input)) //the server has too many connections in progress
+         throw new Exception("Server is busy, try again later.");
+      if (! "ChatServer".equals(input)) //check the received handshake for server's identity
+         throw new Exception("Server did not properly identify itself.");
+      out.println(clientName); //send the client's name
+      //send the port used for chatting with other client, and the local socket for those on this machine
+      String port = Integer.toString(listeningSocket.getLocalPort());
+      String path = LocalSockets.clientPath(listeningSocket.getLocalPort()).toString();
+      out.println(localListener != null && LocalSockets.isAdvertisable(path) ? port + " " + path : port);
+      out.flush();
+      if (out.checkError())
+         throw new Exception("Error while sending identification info to server.");
+      secret = in.readLine();
+      if (secret == null)
+         throw new Exception("Connection closed unexpectedly by server.");
+      socket.setSoTimeout(0);
+   }
+   
    //intro window is the window to set up port, clientName,...
    private static class IntroWindow extends JFrame implements ActionListener {
 
@@ -46,6 +205,9 @@ public class ChatClient {
 
       JTextField serverInput, portInput, nameInput;  // For getting info from user.
       
+      volatile ConnectThread connectThread;  // Connects in the background, null when not connecting.
+      ClientListWindow listWindow;  // Shows the list saved the last time while connecting, or null.
+      
       IntroWindow() {
          super("Connect to server...");
          cancelButton = new JButton("Cancel");
@@ -91,9 +253,15 @@ public class ChatClient {
       }      
       
       public void actionPerformed(ActionEvent evt) {
-         if (evt.getSource() == cancelButton)
-            System.exit(0);
-         else if (evt.getSource() == connectButton || evt.getSource() == nameInput)
+         if (evt.getSource() == cancelButton) {
+            ConnectThread connecting = connectThread;
+            if (connecting != null)
+               connecting.cancel(); //cancel only the connection attempt
+            else
+               System.exit(0);
+         }
+         else if ((evt.getSource() == connectButton || evt.getSource() == nameInput)
+                     && connectThread == null)
             doConnect(); //connect when press "connect"
       }      
       
@@ -118,41 +286,119 @@ public class ChatClient {
             JOptionPane.showMessageDialog(this,"name can't be empty.");
             return;
          }
-         try {
-            setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-            connectionToServer = new Socket(server,port);
-            PrintWriter out = new PrintWriter(connectionToServer.getOutputStream());
-            BufferedReader in = new BufferedReader(new InputStreamReader(
-                                       connectionToServer.getInputStream()));
-            out.println("ChatClient"); //send handshake to server to prove identity
-            out.flush();
-            if (out.checkError())
-               throw new Exception("Error while sending identification info to server.");
-            String input = in.readLine();
-            if (! "ChatServer".equals(input)) //check the received handshake for server's identity
-               throw new Exception("Server did not properly identify itself.");
-            out.println(clientName); //send the client's name
-            listeningSocket = new ServerSocket(0);  // For accepting chat connection requests
-            out.println(listeningSocket.getLocalPort()); //send the port used for chatting with other client
-            out.flush();
-            if (out.checkError())
-               throw new Exception("Error while sending identification info to server.");
-            secret = in.readLine();
-            if (secret == null)
-               throw new Exception("Connection closed unexpectedly by server.");
-            new ClientListWindow(in,out);
+         setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+         connectButton.setEnabled(false);
+         RosterSnapshot snapshot = RosterSnapshot.load(server, port);
+         if (snapshot != null) { //show the list from the last time at once
+            contacts = snapshot.contacts;
+            listWindow = new ClientListWindow(snapshot.infos);
+            listWindow.intro = this; //closing it cancels the connection and asks again
+            setVisible(false);
+         }
+         connectThread = new ConnectThread(server, port);
+         connectThread.start();
+      }
+      
+      //called on the event thread when the connection attempt has ended
+      void connectDone(ConnectThread thread, LineReader in, PrintWriter out, Exception error) {
+         connectThread = null;
+         setCursor(Cursor.getDefaultCursor());
+         connectButton.setEnabled(true);
+         if (listWindow != null)
+            listWindow.intro = null;
+         if (error == null && thread.cancelled) { //connected just as it was cancelled
+            try {
+               connectionToServer.close();
+               listeningSocket.close();
+               if (localListener != null)
+                  localListener.close();
+            }
+            catch (Exception e) {
+            }
+            error = new InterruptedIOException("Connection cancelled");
+         }
+         if (error == null) {
+            if (listWindow == null)
+               listWindow = new ClientListWindow(null);
+            listWindow.attach(in,out);
             dispose();
+            return;
          }
-         catch (Exception e) {
-            if (listeningSocket != null) {
+         if (listWindow != null) { //back to asking
+            listWindow.dispose();
+            listWindow = null;
+            setVisible(true);
+         }
+         if (! thread.cancelled)
+            JOptionPane.showMessageDialog(this,"Can't open connection to server:\n" + error);
+      }
+      
+      // thread to connect and do the handshake, so the window stays responsive and can cancel
+      class ConnectThread extends Thread {
+         String server;
+         int port;
+         volatile boolean cancelled;
+         volatile Socket socket;
+         ConnectThread(String server, int port) {
+            this.server = server;
+            this.port = port;
+         }
+         void cancel() {
+            cancelled = true;
+            interrupt(); //stops the connection attempts
+            try {
+               if (socket != null)
+                  socket.close(); //stops the handshake
+            }
+            catch (Exception e) {
+            }
+         }
+         public void run() {
+            LineReader in = null;
+            PrintWriter out = null;
+            Exception error = null;
+            try {
+               socket = connect(server, port, LocalSockets.serverPath(port));
+               if (cancelled)
+                  throw new InterruptedIOException("Connection cancelled");
+               out = new PrintWriter(socket.getOutputStream());
+               in = new LineReader(socket.getInputStream(), MAX_LINE_LENGTH);
+               listeningSocket = new ServerSocket(0);  // For accepting chat connection requests
+               DatagramTransport.open(listeningSocket.getLocalPort()); //same port number, with -Dchat.datagrams=true
+               try {
+                  localListener = LocalSockets.listen(LocalSockets.clientPath(listeningSocket.getLocalPort()));
+               }
+               catch (LocalSockets.InUseException e) { //buddies on this machine would go to whoever has it
+                  throw e;
+               }
+               catch (IOException e) { //clients on this machine connect over TCP
+               }
+               handshake(socket, in, out, null); //the saved list has no version, the server sends it all
+               connectionToServer = socket;
+               serverHost = server;
+               serverPort = port;
+            }
+            catch (Exception e) {
+               error = e;
                try {
-                  listeningSocket.close();
+                  if (socket != null)
+                     socket.close();
+                  if (listeningSocket != null)
+                     listeningSocket.close();
+                  if (localListener != null)
+                     localListener.close();
                }
                catch (Exception e2) {
                }
             }
-            setCursor(Cursor.getDefaultCursor());
-            JOptionPane.showMessageDialog(this,"Can't open connection to server:\n" + e);
+            final LineReader connectedIn = in;
+            final PrintWriter connectedOut = out;
+            final Exception connectError = error;
+            SwingUtilities.invokeLater(new Runnable() {
+               public void run() {
+                  connectDone(ConnectThread.this, connectedIn, connectedOut, connectError);
+               }
+            });
          }
       }
       
@@ -162,44 +408,65 @@ public class ChatClient {
    private static class ClientListWindow extends JFrame 
                                  implements ActionListener, ListSelectionListener {
       
+      private static final long serialVersionUID = 1L;
+
       JButton connectButton;
       JButton closeButton;
+      JButton contactsButton;
       
-      JList clientList;     // Holds the list of clients.
+      JList<ClientInfo> clientList;     // Holds the list of clients.
+      RosterModel model = new RosterModel();  // What the list shows, changed on the event thread only.
       volatile ArrayList<ClientInfo> clientInfo; // List of clients shown
       
-      PrintWriter out;    
-      BufferedReader in;
+      volatile PrintWriter out;    
+      volatile LineReader in;
 
       Thread readerThread;
       Thread writerThread;
       Thread listeningThread;
       volatile boolean closed;  // Set to true when window and connection to server close.
+      volatile boolean connected;  // False until attached, and while the connection to the server is reopened.
+      volatile boolean stale;  // The list is the one saved the last time, the server did not answer yet.
+      IntroWindow intro;  // Hidden while the saved list shows before the first connection, else null.
       volatile long lastRefreshTime;  // Time when client list was last modified.
+      long lastSnapshotTime;  // Time when the list was last saved for the next start.
+      //the contacts each refresh or subscribe not answered yet was sent under, in order
+      ArrayList<String> listRequests = new ArrayList<String>();
+      volatile boolean handshakeAnswered;  // The list or the changes asked for in the handshake came.
+      volatile long pingSent;  // System.nanoTime() of the ping to the server not answered yet, 0 if none.
+      JLabel serverLabel;  // The round trip to the server.
+      Timer qualityTimer;  // Redraws the list with the round trips to the peers, made when attached.
       
       
       
-      ClientListWindow(BufferedReader in, PrintWriter out) {
+      //the window, with the list saved the last time if there is one; attach gives it the connection
+      ClientListWindow(ArrayList<String> saved) {
          super("ChatClient: " + clientName);
-         this.in = in;
-         this.out = out;
          connectButton = new JButton("Connect to Selected Client");
          connectButton.addActionListener(this);
          connectButton.setEnabled(false);
          closeButton = new JButton("Close all Windows and Quit");
          closeButton.addActionListener(this);
-         clientList = new JList();
+         contactsButton = new JButton("Contacts...");
+         contactsButton.addActionListener(this);
+         clientList = new JList<ClientInfo>(model);
          clientList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
          clientList.addListSelectionListener(this);
+         //rows of one size, so a long list isn't measured row by row; only the visible rows are drawn
+         clientList.setPrototypeCellValue(new ClientInfo("a_long_user_name~255.255.255.255~0~-"));
+         serverLabel = new JLabel("Server round trip: -");
+         serverLabel.setForeground(Color.WHITE);
          JPanel content = new JPanel();
          content.setBackground(Color.GRAY);
          content.setBorder(BorderFactory.createLineBorder(Color.GRAY,3));
          content.setLayout(new BorderLayout(3,3));
+         content.add(serverLabel, BorderLayout.NORTH);
          content.add( new JScrollPane(clientList), BorderLayout.CENTER);
          JPanel bottom = new JPanel();
          bottom.setBackground(Color.GRAY);
-         bottom.setLayout(new GridLayout(2,1,3,3));
+         bottom.setLayout(new GridLayout(3,1,3,3));
          bottom.add(connectButton);
+         bottom.add(contactsButton);
          bottom.add(closeButton);
          content.add(bottom, BorderLayout.SOUTH);
          setContentPane(content);
@@ -209,18 +476,85 @@ public class ChatClient {
          setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
          addWindowListener( new WindowAdapter() {
             public void windowClosing(WindowEvent evt) {
-               closeConnectionToServer();
+               if (intro != null)
+                  intro.connectThread.cancel(); //the intro window comes back when the attempt ends
+               else
+                  closeConnectionToServer();
             }
          });
+         if (saved != null) {
+            ArrayList<ClientInfo> clients = new ArrayList<ClientInfo>();
+            for (String info : saved) {
+               try {
+                  clients.add(new ClientInfo(info));
+               }
+               catch (Exception e) { //a damaged line in the saved list
+               }
+            }
+            setClientList(clients);
+            stale = true;
+            clientList.setEnabled(false); //the secrets may be old, nobody can be picked until the server answers
+            setTitle("ChatClient: " + clientName + " (saved list, connecting...)");
+         }
          setVisible(true);
+      }      
+      
+      //start using the connection to the server
+      void attach(LineReader in, PrintWriter out) {
+         this.in = in;
+         this.out = out;
+         connected = true;
+         if (qualityTimer == null) { //no chat can be open before, the saved list can't be picked from
+            qualityTimer = new Timer(QUALITY_REPAINT, new ActionListener() {
+               public void actionPerformed(ActionEvent evt) {
+                  clientList.repaint(); //only the visible rows, each asks ChatWindow for its round trip
+               }
+            });
+            qualityTimer.start();
+         }
+         setTitle("ChatClient: " + clientName + (stale ? " (saved list, updating...)" : ""));
          readerThread = new ReaderThread();
          writerThread = new WriterThread();
          listeningThread = new ListeningThread();
          readerThread.start();
          writerThread.start();
          listeningThread.start();
+         if (localListener != null)
+            new LocalListeningThread().start();
       }      
       
+      //called by the reader thread at the end of every update from the server
+      void listUpdated() {
+         if (stale) {
+            stale = false;
+            SwingUtilities.invokeLater(new Runnable() {
+               public void run() {
+                  clientList.setEnabled(true);
+                  if (connected)
+                     setTitle("ChatClient: " + clientName);
+               }
+            });
+         }
+         long now = System.currentTimeMillis();
+         if (now - lastSnapshotTime > SNAPSHOT_INTERVAL) {
+            lastSnapshotTime = now;
+            saveSnapshot();
+         }
+      }
+      
+      //keep the list for the next start
+      void saveSnapshot() {
+         if (stale || serverHost == null)
+            return; //nothing new to keep
+         ArrayList<String> infos = new ArrayList<String>();
+         synchronized(this) {
+            if (clientInfo != null)
+               for (ClientInfo info : clientInfo)
+                  infos.add(info.info);
+         }
+         RosterSnapshot.save(serverHost, serverPort, contacts, infos);
+      }
+      
       public void actionPerformed(ActionEvent evt) {
          if (evt.getSource() == closeButton) {
             ChatWindow.closeAll();
@@ -229,6 +563,32 @@ public class ChatClient {
          else if (evt.getSource() == connectButton) {
             doConnect();
          }
+         else if (evt.getSource() == contactsButton) {
+            editContacts();
+         }
+      }
+      
+      //ask for the names to show, the server then sends news only about them
+      void editContacts() {
+         String current = contacts == null ? "" : contacts.replace('~', ' ');
+         String names = JOptionPane.showInputDialog(this,
+               "Names to show, separated by spaces (empty to show everybody):", current);
+         if (names == null)
+            return;
+         names = names.trim().replaceAll("~","-").replaceAll("\\s+", "~");
+         contacts = names.length() == 0 ? null : names;
+         if (connected) //an error shows up in the reader or writer thread
+            requestList(contacts == null ? "subscribe" : "subscribe " + contacts);
+      }
+      
+      //send refresh or subscribe; the list that answers it goes with the contacts at this time
+      void requestList(String command) {
+         PrintWriter out = this.out;
+         synchronized(listRequests) {
+            listRequests.add(contacts);
+            out.println(command);
+            out.flush();
+         }
       }
       
       public void valueChanged(ListSelectionEvent e) {
@@ -242,6 +602,11 @@ public class ChatClient {
          String ip;      // The client's ip address, read from the info string.
          int port;       // The client's port number, read from the info string.
          String secret;  // The client's secret, read from the info string.
+         String path;    // The client's local socket, read from the info string, or null.
+         public String toString() {  // As the list shows it, with the round trip of an open chat.
+            long rtt = ChatWindow.roundTripTime(name);
+            return name + " (" + ip + ")" + (rtt < 0 ? "" : " " + rtt + " ms");
+         }
          ClientInfo(String info) {
             this.info = info;
             Scanner scanner = new Scanner(info); // For parsing the info string.
@@ -250,20 +615,56 @@ public class ChatClient {
             ip = scanner.next();
             port = Integer.parseInt(scanner.next());
             secret = scanner.next();
+            if (scanner.hasNext())
+               path = scanner.next();
          }
       }
       
       
+      // the clients as the list shows them; changed on the event thread only, so an index picked by
+      //the user refers to the same list as the one on the screen
+      class RosterModel extends AbstractListModel<ClientInfo> {
+         private static final long serialVersionUID = 1L;
+         ArrayList<ClientInfo> shown = new ArrayList<ClientInfo>();
+         public int getSize() {
+            return shown.size();
+         }
+         public ClientInfo getElementAt(int index) {
+            return shown.get(index);
+         }
+         void add(ClientInfo client) {
+            shown.add(client);
+            fireIntervalAdded(this, shown.size() - 1, shown.size() - 1);
+         }
+         void remove(ClientInfo client) {
+            int index = shown.indexOf(client);
+            if (index >= 0) {
+               shown.remove(index);
+               fireIntervalRemoved(this, index, index);
+            }
+         }
+         void set(ArrayList<ClientInfo> clients) {
+            if (shown.size() > 0) {
+               int last = shown.size() - 1;
+               shown = new ArrayList<ClientInfo>();
+               fireIntervalRemoved(this, 0, last);
+            }
+            shown = clients;
+            if (clients.size() > 0)
+               fireIntervalAdded(this, 0, clients.size() - 1);
+         }
+      }
+      
       // this is call whenever a new list of clients is received
       //to update the list in the window
       synchronized void setClientList(ArrayList<ClientInfo> clientInfo) {
          this.clientInfo = clientInfo;
-         String[] listStrings = new String[clientInfo.size()];
-         for (int i = 0; i < listStrings.length; i++) {
-            ClientInfo info = clientInfo.get(i);
-            listStrings[i] = info.name + " (" + info.ip + ")";
-         }
-         clientList.setListData(listStrings);
+         final ArrayList<ClientInfo> copy = new ArrayList<ClientInfo>(clientInfo);
+         SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+               model.set(copy);
+            }
+         });
       }
       
       // add a client into the list
@@ -274,8 +675,16 @@ public class ChatClient {
             setClientList(client);
          }
          else {
+            for (ClientInfo c : clientInfo)
+               if (c.info.equals(info.info))
+                  return; //already in the list, announcements and the full list can cross
             clientInfo.add(info);
-            setClientList(clientInfo);
+            final ClientInfo added = info;
+            SwingUtilities.invokeLater(new Runnable() {
+               public void run() {
+                  model.add(added);
+               }
+            });
          }
       }
       
@@ -285,30 +694,40 @@ public class ChatClient {
             return;
          for (int i = 0; i < clientInfo.size(); i++) {
             if (info.equals(clientInfo.get(i).info)) {
-               clientInfo.remove(i);
-               setClientList(clientInfo);
+               final ClientInfo removed = clientInfo.remove(i);
+               SwingUtilities.invokeLater(new Runnable() {
+                  public void run() {
+                     model.remove(removed);
+                  }
+               });
                return;
             }
          }
       }
       
       //connect to client
-      synchronized void doConnect() {
+      void doConnect() {
          int selectedIndex = clientList.getSelectedIndex();
-         if (selectedIndex < 0)
+         if (selectedIndex < 0 || stale)
             return;
          clientList.clearSelection();
-         ClientInfo info = clientInfo.get(selectedIndex);
-         new ChatWindow(info.ip, info.port, clientName, info.name, info.secret);
+         ClientInfo info = model.getElementAt(selectedIndex);
+         new ChatWindow(info.ip, info.port, clientName, info.name, info.secret,
+                        info.path == null ? null : Paths.get(info.path));
       }
 
       
       void closeConnectionToServer() {
          closed = true;
          running = false;
+         if (qualityTimer != null)
+            qualityTimer.stop();
          dispose();
+         saveSnapshot();
          try {
             listeningSocket.close();
+            if (localListener != null)
+               localListener.close();
          }
          catch (Exception e) {
          }
@@ -317,8 +736,10 @@ public class ChatClient {
          }
          catch (Exception e) {
          }
-         synchronized(writerThread) {
-            writerThread.notify();
+         if (writerThread != null) {
+            synchronized(writerThread) {
+               writerThread.notify();
+            }
          }
          try {
             Thread.sleep(1000);
@@ -329,6 +750,82 @@ public class ChatClient {
             System.exit(0);
       }
       
+      void showServerRoundTrip(final long millis) {
+         SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+               serverLabel.setText("Server round trip: " + millis + " ms");
+            }
+         });
+      }
+      
+      //called by the reader or writer thread when the connection to the server is lost
+      //the list and the chat windows stay, and a thread reconnects in the background
+      synchronized void connectionLost() {
+         if (closed || !connected)
+            return;
+         connected = false;
+         try {
+            connectionToServer.close();
+         }
+         catch (Exception e) {
+         }
+         setTitle("ChatClient: " + clientName + " (reconnecting...)");
+         new ReconnectThread().start();
+      }
+      
+      // thread to reopen the connection to the server, with exponential backoff and random jitter
+      //so that clients do not all come back at the same moment after a server restart
+      class ReconnectThread extends Thread {
+         public void run() {
+            int delay = RECONNECT_BASE_DELAY;
+            while (!closed) {
+               try {
+                  Thread.sleep((long)(delay*Math.random()));
+               }
+               catch (InterruptedException e) {
+               }
+               if (closed)
+                  return;
+               Socket socket = null;
+               try {
+                  socket = connect(serverHost,serverPort,LocalSockets.serverPath(serverPort));
+                  PrintWriter newOut = new PrintWriter(socket.getOutputStream());
+                  LineReader newIn = new LineReader(socket.getInputStream(), MAX_LINE_LENGTH);
+                  handshake(socket, newIn, newOut, rosterVersion); //the server sends only what changed
+                  synchronized(ClientListWindow.this) {
+                     if (closed) {
+                        socket.close();
+                        return;
+                     }
+                     connectionToServer = socket;
+                     in = newIn;
+                     out = newOut;
+                     pingSent = 0;
+                     handshakeAnswered = false;
+                     synchronized(listRequests) {
+                        listRequests.clear();
+                     }
+                     connected = true;
+                  }
+                  setTitle("ChatClient: " + clientName);
+                  readerThread = new ReaderThread();
+                  readerThread.start();
+                  return;
+               }
+               catch (Exception e) {
+                  if (socket != null) {
+                     try {
+                        socket.close();
+                     }
+                     catch (Exception e2) {
+                     }
+                  }
+                  delay = Math.min(2*delay, RECONNECT_MAX_DELAY);
+               }
+            }
+         }
+      }
+      
       // thread to accept connection from other client, and open the chat window
       class ListeningThread extends Thread {
          public void run() {
@@ -349,6 +846,18 @@ public class ChatClient {
          }
       }
       
+      // thread to accept connections from clients on this machine over the local socket
+      class LocalListeningThread extends Thread {
+         public void run() {
+            try {
+               while (! closed)
+                  new ChatWindow(LocalSockets.accept(localListener),secret);
+            }
+            catch (Exception e) { //closed, they can still connect over TCP
+            }
+         }
+      }
+      
       // the thread to receive command from server
       class ReaderThread extends Thread {
          public void run() {
@@ -368,6 +877,12 @@ public class ChatClient {
                      lastRefreshTime = System.currentTimeMillis();
                   }
                   else if (command.equals("clients")) { // Complete client list.
+                     if (handshakeAnswered) { // the answer to a refresh or subscribe
+                        synchronized(listRequests) {
+                           if (! listRequests.isEmpty())
+                              serverContacts = listRequests.remove(0);
+                        }
+                     }
                      ArrayList<ClientInfo> clients = new ArrayList<ClientInfo>();
                      while (true) {
                         String line = in.readLine();
@@ -378,20 +893,44 @@ public class ChatClient {
                      setClientList(clients);
                      lastRefreshTime = System.currentTimeMillis();
                   }
-                  else if (command.equals("ping") || command.equals("pingresponse")) { // ignored
+                  else if (command.equals("version")) { // Version of the list after the commands above.
+                     String version = in.readLine();
+                     if (version == null)
+                        throw new Exception();
+                     rosterVersion = version;
+                     rosterContacts = serverContacts;
+                     handshakeAnswered = true;
+                     listUpdated();
+                  }
+                  else if (command.equals("ping")) { // The server times the round trip, answer at once.
+                     PrintWriter out = ClientListWindow.this.out;
+                     out.println("pingresponse");
+                     out.flush();
+                  }
+                  else if (command.equals("pingresponse")) { // The answer to our ping.
+                     long sent = pingSent;
+                     if (sent != 0) {
+                        pingSent = 0;
+                        showServerRoundTrip((System.nanoTime() - sent) / 1000000);
+                     }
+                  }
+                  else if (command.equals("ratelimited")) { // A command was refused, sent too often.
+                     String refused = in.readLine(); // it is retried with the next timer
+                     if ("ping".equals(refused))
+                        pingSent = 0;
+                     else if (refused != null && ! refused.equals("pingresponse")) {
+                        synchronized(listRequests) { // the server still has the contacts it had
+                           if (! listRequests.isEmpty())
+                              listRequests.remove(0);
+                        }
+                     }
                   }
                   else
                      throw new Exception("Illegal data");
                }
             }
             catch (Exception e) {
-               if (! closed) {
-                  closed = true;
-                  JOptionPane.showMessageDialog(ClientListWindow.this,
-                        "Error occurred while reading from ChatServer.\n" +
-                        "New connections are no longer possible.");
-                  closeConnectionToServer();
-               }
+               connectionLost();
             }
          }
       }
@@ -399,35 +938,26 @@ public class ChatClient {
       // thread to send command to server
       class WriterThread extends Thread {
          public void run() {
-            try {
-               while (!closed) {
-                  synchronized(this) {
-                     try {
-                        wait(10*60*1000); // Wait 10 minutes or until notify() is called.
-                     }
-                     catch (InterruptedException e) {
-                     }
-                     if (! closed) {
-                        String send;
-                        if (System.currentTimeMillis() - lastRefreshTime > 25*60*1000)
-                           send = "refresh";
-                        else
-                           send = "ping";
-                        out.println(send);
-                        out.flush();
-                        if (out.checkError())
-                           throw new Exception();
-                     }
+            while (!closed) {
+               synchronized(this) {
+                  try {
+                     wait(PING_INTERVAL); // Wait a minute or until notify() is called.
+                  }
+                  catch (InterruptedException e) {
                   }
                }
-            }
-            catch (Exception e) {
-               if (! closed) {
-                  closed = true;
-                  JOptionPane.showMessageDialog(ClientListWindow.this,
-                        "Error occurred while sending to ChatServer.\n" +
-                        "New connections are no longer possible.");
-                  closeConnectionToServer();
+               if (! closed && connected) { // nothing to send while reconnecting
+                  PrintWriter out = ClientListWindow.this.out;
+                  if (System.currentTimeMillis() - lastRefreshTime > 25*60*1000)
+                     requestList("refresh");
+                  else {
+                     if (pingSent == 0) // an unanswered ping keeps its time, the answers come in order
+                        pingSent = System.nanoTime();
+                     out.println("ping");
+                     out.flush();
+                  }
+                  if (out.checkError())
+                     connectionLost();
                }
             }
          }
@@ -435,4 +965,78 @@ public class ChatClient {
 
    }   
 
+   // The last client list from a server, kept on disk so that the next start can show it at once while
+   //the server sends the list. The secrets are not kept: they let anybody who reads the file open a chat
+   //as if the server had introduced them, so the saved infos can't be connected to and the list can't be
+   //resumed from its version. One file per server: the contacts ("-" for everybody), then one client
+   //info per line, with "-" for the secret.
+   private static class RosterSnapshot {
+
+      String contacts;
+      ArrayList<String> infos = new ArrayList<String>();
+
+      static File file(String host, int port) {
+         return new File(System.getProperty("user.home"), ".chatclient" + File.separator
+               + "roster-" + host.replaceAll("[^A-Za-z0-9.-]", "_") + "-" + port);
+      }
+
+      //the saved list, or null if there is none or it can't be read
+      static RosterSnapshot load(String host, int port) {
+         File file = file(host, port);
+         if (!file.exists())
+            return null;
+         try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+               RosterSnapshot snapshot = new RosterSnapshot();
+               String contacts = in.readLine();
+               if (contacts == null)
+                  return null;
+               snapshot.contacts = contacts.equals("-") ? null : contacts;
+               String line;
+               while ((line = in.readLine()) != null)
+                  snapshot.infos.add(line);
+               return snapshot;
+            }
+            finally {
+               in.close();
+            }
+         }
+         catch (IOException e) {
+            return null;
+         }
+      }
+
+      //an info with "-" for the secret, the fourth field
+      static String withoutSecret(String info) {
+         String[] fields = info.split("~", -1);
+         if (fields.length < 4)
+            return info;
+         fields[3] = "-";
+         return String.join("~", fields);
+      }
+
+      //write to a new file and move it over the old one, a crash leaves one of them whole
+      static void save(String host, int port, String contacts, ArrayList<String> infos) {
+         File file = file(host, port);
+         File temporary = new File(file.getPath() + ".new");
+         try {
+            file.getParentFile().mkdirs();
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8"));
+            out.println(contacts == null ? "-" : contacts);
+            for (String info : infos)
+               out.println(withoutSecret(info));
+            out.close();
+            if (out.checkError())
+               throw new IOException("Can't write " + temporary);
+            Files.move(temporary.toPath(), file.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+         }
+         catch (IOException e) { //the next start waits for the server, as without a saved list
+            temporary.delete();
+         }
+      }
+
+   }
+
 }
@@ -0,0 +1,678 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ *
+ * ChatHistory.java: The chat history of this user with all partners, kept in the user's home directory.
+ * Every message sent or received is appended to a message log and put in a full-text index, so old
+ * messages can be found by words or phrases. The index is an inverted index: for each word, the
+ * messages that have it and the positions of the word in them. New messages are indexed in memory
+ * and written out as a segment file every SEGMENT_SIZE messages; a background thread merges the
+ * segment files into one when there are more than MAX_SEGMENTS of them.
+ * Nothing is kept unless the user asks for it with -Dchat.history=true; the directory is then only
+ * readable by the user.
+ *
+ */
+
+
+public class ChatHistory {
+
+   private static final int SEGMENT_SIZE = 1000; //messages indexed in memory before a segment file is written
+   private static final int MAX_SEGMENTS = 8; //segment files before they are merged
+   private static final int MAX_HITS = 200; //most messages returned by a search
+   private static final int MAGIC = 0x43484932; //"CHI2", first int of a segment file
+   private static final int MAX_WORD = 100; //characters of the longest word indexed
+
+   private static ChatHistory history; //the history of this user, opened when first needed
+   private static boolean unavailable; //the history directory can't be used, or another client has it
+
+   //a message of the history
+   public static class Message {
+      public final long id; //messages are numbered from 0 in the order they were added
+      public final long time;
+      public final String partner;
+      public final boolean sent; //sent by this user, otherwise received
+      public final String text;
+      Message(long id, long time, String partner, boolean sent, String text) {
+         this.id = id;
+         this.time = time;
+         this.partner = partner;
+         this.sent = sent;
+         this.text = text;
+      }
+      public String toString() {
+         return new Date(time) + "  " + (sent ? "to " : "from ") + partner + ":  " + text;
+      }
+   }
+
+   private File dir;
+   private RandomAccessFile log; //the messages, one record after the other
+   private RandomAccessFile offsets; //where each message starts in the log, 8 bytes per message
+   private FileLock lock; //only one client at a time writes the history
+   private long messageCount; //messages added so far, the id of the next one
+   private MemorySegment memory = new MemorySegment(); //the messages that are not in a segment file yet
+   private ArrayList<Segment> segments = new ArrayList<Segment>(); //the segment files
+   private int nextGeneration; //number of the next segment file
+   private volatile boolean merging;
+   private LinkedBlockingQueue<Message> incoming = new LinkedBlockingQueue<Message>(); //for the writer thread
+
+   //the history of this user, or null if it is off or can't be opened
+   public static synchronized ChatHistory get() {
+      if (history == null && !unavailable && enabled()) {
+         try {
+            history = new ChatHistory(new File(System.getProperty("user.home"),
+                                                  ".chatclient" + File.separator + "history"));
+         }
+         catch (IOException e) {
+            unavailable = true;
+         }
+      }
+      return history;
+   }
+
+   //whether the user asked for a history
+   public static boolean enabled() {
+      return Boolean.getBoolean("chat.history");
+   }
+
+   private ChatHistory(File dir) throws IOException {
+      this.dir = dir;
+      dir.mkdirs();
+      //the messages are the user's own: nobody else may list or read them
+      if (dir.toPath().getFileSystem().supportedFileAttributeViews().contains("posix"))
+         Files.setPosixFilePermissions(dir.toPath(), PosixFilePermissions.fromString("rwx------"));
+      log = new RandomAccessFile(new File(dir, "messages.log"), "rw");
+      lock = log.getChannel().tryLock();
+      if (lock == null) {
+         log.close();
+         throw new IOException("History is used by another client.");
+      }
+      offsets = new RandomAccessFile(new File(dir, "messages.idx"), "rw");
+      messageCount = offsets.length() / 8; //an entry cut short by a crash is not counted
+      loadSegments();
+      long indexed = -1;
+      for (Segment segment : segments)
+         indexed = Math.max(indexed, segment.maxId);
+      for (long id = indexed + 1; id < messageCount; id++) //messages that were only in memory last time
+         memory.add(read(id));
+      Thread writer = new Thread("ChatHistory") {
+         public void run() {
+            writeMessages();
+         }
+      };
+      writer.setDaemon(true);
+      writer.start();
+   }
+
+   //load the segment files; the ones that a merge already put in another file are deleted
+   private void loadSegments() throws IOException {
+      File[] files = dir.listFiles();
+      ArrayList<Segment> loaded = new ArrayList<Segment>();
+      for (File file : files)
+         if (file.getName().startsWith("seg-") && file.getName().endsWith(".idx"))
+            loaded.add(Segment.load(file));
+      for (Segment segment : loaded) {
+         boolean covered = false;
+         for (Segment other : loaded)
+            if (other != segment && other.firstGeneration <= segment.firstGeneration
+                  && other.lastGeneration >= segment.lastGeneration
+                  && other.lastGeneration - other.firstGeneration
+                        > segment.lastGeneration - segment.firstGeneration)
+               covered = true;
+         if (covered)
+            segment.file.delete();
+         else
+            segments.add(segment);
+         nextGeneration = Math.max(nextGeneration, segment.lastGeneration + 1);
+      }
+   }
+
+   //add a message, returns its id. The message is written and indexed by a background thread.
+   public synchronized long add(String partner, boolean sent, String text) {
+      Message message = new Message(messageCount++, System.currentTimeMillis(), partner, sent, text);
+      incoming.add(message);
+      return message.id;
+   }
+
+   //the messages with all the words of the query, or with the words in that order if the query
+   //has quotes, newest first
+   public ArrayList<Message> search(String query) {
+      ArrayList<String> words = new ArrayList<String>();
+      for (Word w : words(query))
+         words.add(w.text);
+      ArrayList<Long> ids = new ArrayList<Long>();
+      if (words.size() > 0) {
+         boolean phrase = query.indexOf('"') >= 0;
+         synchronized(this) {
+            for (Segment segment : segments)
+               segment.search(words, phrase, ids);
+            memory.search(words, phrase, ids);
+         }
+      }
+      Collections.sort(ids, Collections.reverseOrder());
+      ArrayList<Message> hits = new ArrayList<Message>();
+      for (int i = 0; i < ids.size() && i < MAX_HITS; i++) {
+         try {
+            hits.add(read(ids.get(i)));
+         }
+         catch (IOException e) {
+         }
+      }
+      return hits;
+   }
+
+   //the writer thread: appends the messages to the log and indexes them
+   private void writeMessages() {
+      try {
+         while (true) {
+            Message message = incoming.take();
+            append(message);
+            synchronized(this) {
+               memory.add(message);
+               if (memory.count >= SEGMENT_SIZE) {
+                  File file = new File(dir, "seg-" + nextGeneration + ".idx");
+                  segments.add(memory.write(file, nextGeneration++));
+                  memory = new MemorySegment();
+               }
+               if (segments.size() > MAX_SEGMENTS && !merging) {
+                  merging = true;
+                  new Thread("ChatHistory merge") {
+                     public void run() {
+                        merge();
+                     }
+                  }.start();
+               }
+            }
+         }
+      }
+      catch (Exception e) { //the history stops, the chat goes on
+         System.out.println("Chat history stopped: " + e);
+      }
+   }
+
+   //merge all the current segment files into one, searches go on meanwhile
+   private void merge() {
+      try {
+         ArrayList<Segment> merged;
+         int generation;
+         synchronized(this) {
+            merged = new ArrayList<Segment>(segments);
+            generation = nextGeneration++;
+         }
+         Segment segment = Segment.merge(merged, new File(dir, "seg-" + generation + ".idx"), generation);
+         synchronized(this) {
+            segments.removeAll(merged);
+            segments.add(segment);
+         }
+         for (Segment old : merged)
+            old.file.delete();
+      }
+      catch (IOException e) {
+         System.out.println("Chat history merge failed: " + e);
+      }
+      finally {
+         merging = false;
+      }
+   }
+
+   private void append(Message message) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeLong(message.time);
+      out.writeUTF(message.partner);
+      out.writeBoolean(message.sent);
+      byte[] text = message.text.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(text.length);
+      out.write(text);
+      synchronized(log) {
+         long start = log.length();
+         log.seek(start);
+         log.write(bytes.toByteArray());
+         offsets.seek(message.id * 8);
+         offsets.writeLong(start);
+      }
+   }
+
+   private Message read(long id) throws IOException {
+      byte[] record;
+      synchronized(log) {
+         offsets.seek(id * 8);
+         long start = offsets.readLong();
+         long end = id + 1 < messageCount && (id + 2) * 8 <= offsets.length() ? offsets.readLong() : log.length();
+         record = new byte[(int)(end - start)];
+         log.seek(start);
+         log.readFully(record);
+      }
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+      long time = in.readLong();
+      String partner = in.readUTF();
+      boolean sent = in.readBoolean();
+      byte[] text = new byte[in.readInt()];
+      in.readFully(text);
+      return new Message(id, time, partner, sent, new String(text, StandardCharsets.UTF_8));
+   }
+
+   //a word of a text and its position
+   public static class Word {
+      public final String text; //in lower case
+      public final int start, end; //where it is in the text
+      Word(String text, int start, int end) {
+         this.text = text;
+         this.start = start;
+         this.end = end;
+      }
+   }
+
+   //the words of a text: runs of letters and digits; longer ones than MAX_WORD are left out, nobody
+   //searches for them and a segment file has two bytes for the length of a word
+   public static ArrayList<Word> words(String text) {
+      ArrayList<Word> words = new ArrayList<Word>();
+      int i = 0;
+      while (i < text.length()) {
+         while (i < text.length() && !Character.isLetterOrDigit(text.charAt(i)))
+            i++;
+         int start = i;
+         while (i < text.length() && Character.isLetterOrDigit(text.charAt(i)))
+            i++;
+         if (i > start && i - start <= MAX_WORD)
+            words.add(new Word(text.substring(start, i).toLowerCase(), start, i));
+      }
+      return words;
+   }
+
+   //the postings of a word: for each message that has it, the message id as difference to the one
+   //before, the number of positions and the positions as differences, all as variable length numbers
+   static class Postings {
+      byte[] data = new byte[16];
+      int length;
+      long lastId = -1;
+      void add(long id, int[] positions, int count) {
+         writeNumber(id - lastId);
+         lastId = id;
+         writeNumber(count);
+         int last = 0;
+         for (int i = 0; i < count; i++) {
+            writeNumber(positions[i] - last);
+            last = positions[i];
+         }
+      }
+      void writeNumber(long n) {
+         if (length + 10 > data.length)
+            data = Arrays.copyOf(data, 2 * data.length + 10);
+         while (n >= 0x80) {
+            data[length++] = (byte)(n | 0x80);
+            n >>>= 7;
+         }
+         data[length++] = (byte)n;
+      }
+   }
+
+   //reads postings back
+   static class PostingsReader {
+      byte[] data;
+      int position, end;
+      long id = -1;
+      int[] positions = new int[8];
+      int count;
+      PostingsReader(byte[] data, int length) {
+         this.data = data;
+         end = length;
+      }
+      boolean next() { //the next message, false at the end
+         if (position >= end)
+            return false;
+         id += readNumber();
+         count = (int)readNumber();
+         if (count > positions.length)
+            positions = new int[count];
+         int last = 0;
+         for (int i = 0; i < count; i++) {
+            last += (int)readNumber();
+            positions[i] = last;
+         }
+         return true;
+      }
+      long readNumber() {
+         long n = 0;
+         int shift = 0;
+         byte b;
+         do {
+            b = data[position++];
+            n |= (long)(b & 0x7F) << shift;
+            shift += 7;
+         } while (b < 0);
+         return n;
+      }
+   }
+
+   //an index of some of the messages
+   private static abstract class Index {
+
+      abstract byte[] postings(String word);
+
+      abstract int postingsLength(String word);
+
+      //add the ids of the messages with all the words, or with the phrase, to the result
+      //the postings of the words are walked side by side, each one skipping to the highest id
+      void search(ArrayList<String> words, boolean phrase, ArrayList<Long> result) {
+         PostingsReader[] readers = new PostingsReader[words.size()];
+         for (int i = 0; i < readers.length; i++) {
+            byte[] data = postings(words.get(i));
+            if (data == null)
+               return;
+            readers[i] = new PostingsReader(data, postingsLength(words.get(i)));
+            if (!readers[i].next())
+               return;
+         }
+         while (true) {
+            long id = readers[0].id;
+            for (PostingsReader reader : readers)
+               id = Math.max(id, reader.id);
+            boolean all = true;
+            for (PostingsReader reader : readers) {
+               while (reader.id < id)
+                  if (!reader.next())
+                     return;
+               if (reader.id != id)
+                  all = false;
+            }
+            if (all) {
+               if (!phrase || hasPhrase(readers))
+                  result.add(id);
+               if (!readers[0].next())
+                  return;
+            }
+         }
+      }
+
+      //whether the words follow each other somewhere in the message the readers are at
+      static boolean hasPhrase(PostingsReader[] readers) {
+         for (int k = 0; k < readers[0].count; k++) {
+            int start = readers[0].positions[k];
+            boolean match = true;
+            for (int i = 1; i < readers.length && match; i++)
+               match = Arrays.binarySearch(readers[i].positions, 0, readers[i].count, start + i) >= 0;
+            if (match)
+               return true;
+         }
+         return false;
+      }
+   }
+
+   //the index of the newest messages, in memory
+   private static class MemorySegment extends Index {
+
+      HashMap<String,Postings> words = new HashMap<String,Postings>();
+      int count;
+      long maxId = -1;
+
+      void add(Message message) {
+         HashMap<String,int[]> positions = new HashMap<String,int[]>(); //for each word: count, positions...
+         ArrayList<Word> list = words(message.text);
+         for (int i = 0; i < list.size(); i++) {
+            int[] p = positions.get(list.get(i).text);
+            if (p == null)
+               p = new int[2];
+            else if (p[0] + 1 >= p.length)
+               p = Arrays.copyOf(p, 2 * p.length);
+            p[++p[0]] = i;
+            positions.put(list.get(i).text, p);
+         }
+         for (Map.Entry<String,int[]> entry : positions.entrySet()) {
+            Postings postings = words.get(entry.getKey());
+            if (postings == null) {
+               postings = new Postings();
+               words.put(entry.getKey(), postings);
+            }
+            int[] p = entry.getValue();
+            postings.add(message.id, Arrays.copyOfRange(p, 1, p[0] + 1), p[0]);
+         }
+         count++;
+         maxId = message.id;
+      }
+
+      byte[] postings(String word) {
+         Postings postings = words.get(word);
+         return postings == null ? null : postings.data;
+      }
+
+      int postingsLength(String word) {
+         return words.get(word).length;
+      }
+
+      //write this index as a segment file
+      Segment write(File file, int generation) throws IOException {
+         TreeMap<byte[],Postings> sorted = new TreeMap<byte[],Postings>(BYTE_ORDER);
+         for (Map.Entry<String,Postings> entry : words.entrySet())
+            sorted.put(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue());
+         SegmentWriter out = new SegmentWriter(file, generation, generation, maxId);
+         for (Map.Entry<byte[],Postings> entry : sorted.entrySet())
+            out.add(entry.getKey(), entry.getValue().data, entry.getValue().length);
+         return out.finish();
+      }
+   }
+
+   //the index in a segment file, mapped and read where it is so that the words are not all in memory.
+   //The file has: MAGIC, the first and last generation of the segments that were merged into it, the
+   //highest message id in it, the number of words and where the word table starts; then for every word,
+   //in the order of its UTF-8 bytes, the word, the length of its postings and the postings; then the
+   //word table, the offset of each word in the file, for a binary search.
+   private static class Segment extends Index {
+
+      static final int HEADER_SIZE = 28;
+
+      File file;
+      int firstGeneration, lastGeneration;
+      long maxId;
+      MappedByteBuffer map; //only read with absolute gets, searches run in several threads
+      int count; //words
+      int table; //where the word table starts
+
+      byte[] postings(String word) {
+         int i = find(word.getBytes(StandardCharsets.UTF_8));
+         return i < 0 ? null : postings(i);
+      }
+
+      int postingsLength(String word) {
+         int i = find(word.getBytes(StandardCharsets.UTF_8));
+         if (i < 0)
+            return 0;
+         int at = entry(i);
+         return map.getInt(at + 2 + (map.getShort(at) & 0xFFFF));
+      }
+
+      int entry(int i) { //where the i-th word is
+         return map.getInt(table + 4*i);
+      }
+
+      //the number of the word in the table, -1 if it is not there
+      int find(byte[] word) {
+         int low = 0, high = count - 1;
+         while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int c = compare(middle, word);
+            if (c < 0)
+               low = middle + 1;
+            else if (c > 0)
+               high = middle - 1;
+            else
+               return middle;
+         }
+         return -1;
+      }
+
+      //the i-th word against the bytes of another one, in the order of the table
+      int compare(int i, byte[] word) {
+         int at = entry(i);
+         int length = map.getShort(at) & 0xFFFF;
+         for (int k = 0; k < length && k < word.length; k++) {
+            int c = (map.get(at + 2 + k) & 0xFF) - (word[k] & 0xFF);
+            if (c != 0)
+               return c;
+         }
+         return length - word.length;
+      }
+
+      byte[] word(int i) {
+         int at = entry(i);
+         byte[] word = new byte[map.getShort(at) & 0xFFFF];
+         ByteBuffer data = map.duplicate();
+         data.position(at + 2);
+         data.get(word);
+         return word;
+      }
+
+      byte[] postings(int i) {
+         int at = entry(i);
+         at += 2 + (map.getShort(at) & 0xFFFF);
+         byte[] postings = new byte[map.getInt(at)];
+         ByteBuffer data = map.duplicate();
+         data.position(at + 4);
+         data.get(postings);
+         return postings;
+      }
+
+      static Segment load(File file) throws IOException {
+         RandomAccessFile in = new RandomAccessFile(file, "r");
+         try {
+            if (in.readInt() != MAGIC)
+               throw new IOException("Not a history segment: " + file);
+            Segment segment = new Segment();
+            segment.file = file;
+            segment.firstGeneration = in.readInt();
+            segment.lastGeneration = in.readInt();
+            segment.maxId = in.readLong();
+            segment.count = in.readInt();
+            segment.table = in.readInt();
+            if (in.length() > Integer.MAX_VALUE || segment.table + 4L*segment.count > in.length())
+               throw new IOException("Damaged history segment: " + file);
+            segment.map = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            return segment;
+         }
+         finally {
+            in.close();
+         }
+      }
+
+      //one segment file with the postings of all the given segments, its generations run from the
+      //first of theirs to its own so that it covers them and no segment file written meanwhile;
+      //the word tables are walked side by side, one word at a time
+      static Segment merge(ArrayList<Segment> segments, File file, int generation) throws IOException {
+         ArrayList<Segment> ordered = new ArrayList<Segment>(segments); //older messages first
+         Collections.sort(ordered, new Comparator<Segment>() {
+            public int compare(Segment a, Segment b) {
+               return Long.compare(a.maxId, b.maxId);
+            }
+         });
+         int first = Integer.MAX_VALUE;
+         long maxId = -1;
+         for (Segment segment : ordered) {
+            first = Math.min(first, segment.firstGeneration);
+            maxId = Math.max(maxId, segment.maxId);
+         }
+         SegmentWriter out = new SegmentWriter(file, first, generation, maxId);
+         int[] next = new int[ordered.size()]; //the next word of each segment
+         while (true) {
+            byte[] word = null; //the lowest next word
+            for (int k = 0; k < next.length; k++) {
+               Segment segment = ordered.get(k);
+               if (next[k] < segment.count && (word == null || segment.compare(next[k], word) < 0))
+                  word = segment.word(next[k]);
+            }
+            if (word == null)
+               break;
+            Postings postings = new Postings();
+            for (int k = 0; k < next.length; k++) {
+               Segment segment = ordered.get(k);
+               if (next[k] < segment.count && segment.compare(next[k], word) == 0) {
+                  byte[] data = segment.postings(next[k]++);
+                  PostingsReader reader = new PostingsReader(data, data.length);
+                  while (reader.next())
+                     postings.add(reader.id, reader.positions, reader.count);
+               }
+            }
+            out.add(word, postings.data, postings.length);
+         }
+         return out.finish();
+      }
+   }
+
+   //the order of the words in a segment file: their UTF-8 bytes, unsigned
+   static final Comparator<byte[]> BYTE_ORDER = new Comparator<byte[]>() {
+      public int compare(byte[] a, byte[] b) {
+         return Arrays.compareUnsigned(a, b);
+      }
+   };
+
+   //writes a segment file, the words come in BYTE_ORDER; the file appears under its name when finished
+   private static class SegmentWriter {
+
+      File file, temporary;
+      DataOutputStream out;
+      int firstGeneration, lastGeneration;
+      long maxId;
+      long size; //bytes written so far
+      int[] offsets = new int[1024]; //of the words
+      int count;
+
+      SegmentWriter(File file, int firstGeneration, int lastGeneration, long maxId) throws IOException {
+         this.file = file;
+         this.firstGeneration = firstGeneration;
+         this.lastGeneration = lastGeneration;
+         this.maxId = maxId;
+         temporary = new File(file.getPath() + ".tmp");
+         out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+         out.write(new byte[Segment.HEADER_SIZE]); //written when the table is
+         size = Segment.HEADER_SIZE;
+      }
+
+      void add(byte[] word, byte[] postings, int length) throws IOException {
+         if (word.length > 0xFFFF)
+            throw new IOException("Word too long for " + file);
+         if (size + 6 + word.length + length > Integer.MAX_VALUE)
+            throw new IOException("History segment too big: " + file);
+         if (count == offsets.length)
+            offsets = Arrays.copyOf(offsets, 2 * count);
+         offsets[count++] = (int)size;
+         out.writeShort(word.length);
+         out.write(word);
+         out.writeInt(length);
+         out.write(postings, 0, length);
+         size += 6 + word.length + length;
+      }
+
+      Segment finish() throws IOException {
+         try {
+            for (int i = 0; i < count; i++)
+               out.writeInt(offsets[i]);
+         }
+         finally {
+            out.close();
+         }
+         RandomAccessFile header = new RandomAccessFile(temporary, "rw");
+         try {
+            header.writeInt(MAGIC);
+            header.writeInt(firstGeneration);
+            header.writeInt(lastGeneration);
+            header.writeLong(maxId);
+            header.writeInt(count);
+            header.writeInt((int)size);
+         }
+         finally {
+            header.close();
+         }
+         if (!temporary.renameTo(file))
+            throw new IOException("Can't write " + file);
+         return Segment.load(file);
+      }
+   }
+
+}
@@ -0,0 +1,411 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ *
+ * ChatReplay.java: Plays a trace captured by ChatServer (run with -Dchat.capture=file) back against a
+ * server, at the captured speed or faster. Every captured connection is opened again and sends the same
+ * lines at the same (scaled) times. The latency of handshakes and of ping, refresh and subscribe
+ * commands is measured, and errors are counted. The report can be saved, and compared with the report
+ * of an earlier run to see what a change did to real traffic.
+ * Run as a command-line application:
+ *    java ChatReplay trace [speed [host [port]]] [-save report] [-compare report]
+ *
+ */
+
+
+public class ChatReplay {
+
+   private static final int MAGIC = 0x43485452; //"CHTR", as written by ChatServer's TraceCapture
+   private static final byte OPEN = 1, LINE = 2, CLOSE = 3; //types of records in the trace
+   private static final int DRAIN_TIME = 5000; //ms to wait for answers after the last record
+   private static final Charset CHARSET = Charset.defaultCharset(); //as ChatServer reads and writes
+
+   // a record of the trace
+   private static class Record {
+      byte type;
+      long micros; //since the start of the capture
+      int client;
+      String line;
+   }
+
+   // a connection played back
+   private static class Connection {
+      SocketChannel channel;
+      SelectionKey key;
+      long opened; //nanoTime of the open
+      int linesReceived;
+      int linesSent;
+      boolean closing; //the trace closed it, close when everything is sent and answered
+      boolean rateLimited; //the next line is the command that was refused
+      ByteBuffer in = ByteBuffer.allocate(1 << 16);
+      StringBuilder messageOut = new StringBuilder();
+      ByteBuffer pendingOut;
+      ArrayDeque<String> waitingCommands = new ArrayDeque<String>(); //commands sent and not answered
+      ArrayDeque<Long> waitingSince = new ArrayDeque<Long>();
+   }
+
+   private static TreeMap<String,ArrayList<Long>> latencies = new TreeMap<String,ArrayList<Long>>(); //us
+   private static TreeMap<String,Integer> errors = new TreeMap<String,Integer>();
+   private static Selector selector;
+
+   public static void main(String[] args) throws Exception {
+      ArrayList<String> positional = new ArrayList<String>();
+      String save = null, compare = null;
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("-save") && i + 1 < args.length)
+            save = args[++i];
+         else if (args[i].equals("-compare") && i + 1 < args.length)
+            compare = args[++i];
+         else
+            positional.add(args[i]);
+      }
+      if (positional.size() == 0) {
+         System.out.println("Usage: java ChatReplay trace [speed [host [port]]] [-save report] [-compare report]");
+         System.exit(1);
+      }
+      double speed = positional.size() > 1 ? Double.parseDouble(positional.get(1)) : 1;
+      String host = positional.size() > 2 ? positional.get(2) : "localhost";
+      int port = positional.size() > 3 ? Integer.parseInt(positional.get(3)) : 5000;
+      ArrayList<Record> trace = read(positional.get(0));
+      System.out.println("Replaying " + trace.size() + " records at " + speed + "x against " + host + ":" + port);
+      replay(trace, speed, new InetSocketAddress(host, port));
+      TreeMap<String,Double> report = report();
+      for (Map.Entry<String,Double> entry : report.entrySet())
+         System.out.println(entry.getKey() + " " + format(entry.getValue()));
+      if (compare != null)
+         compare(report, compare);
+      if (save != null) {
+         PrintWriter out = new PrintWriter(new FileWriter(save));
+         for (Map.Entry<String,Double> entry : report.entrySet())
+            out.println(entry.getKey() + " " + format(entry.getValue()));
+         out.close();
+      }
+   }
+
+   //the records of a trace file, in time order
+   private static ArrayList<Record> read(String fileName) throws IOException {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+      ArrayList<Record> trace = new ArrayList<Record>();
+      try {
+         if (in.readInt() != MAGIC)
+            throw new IOException("Not a ChatServer trace: " + fileName);
+         in.readLong(); //when it was captured
+         while (true) {
+            int type = in.read();
+            if (type < 0)
+               break;
+            Record record = new Record();
+            record.type = (byte)type;
+            record.micros = readNumber(in);
+            record.client = (int)readNumber(in);
+            if (record.type == LINE) {
+               byte[] bytes = new byte[(int)readNumber(in)];
+               in.readFully(bytes);
+               record.line = new String(bytes, "UTF-8");
+            }
+            trace.add(record);
+         }
+      }
+      catch (EOFException e) { //a capture that was cut off, play what is there
+      }
+      finally {
+         in.close();
+      }
+      Collections.sort(trace, new Comparator<Record>() { //reactors queue their records independently
+         public int compare(Record a, Record b) {
+            return Long.compare(a.micros, b.micros);
+         }
+      });
+      return trace;
+   }
+
+   private static long readNumber(DataInputStream in) throws IOException {
+      long n = 0;
+      int shift = 0;
+      int b;
+      do {
+         b = in.readUnsignedByte();
+         n |= (long)(b & 0x7F) << shift;
+         shift += 7;
+      } while ((b & 0x80) != 0);
+      return n;
+   }
+
+   //play the trace back, all connections from one thread with a selector
+   private static void replay(ArrayList<Record> trace, double speed, InetSocketAddress server) throws IOException {
+      selector = Selector.open();
+      HashMap<Integer,Connection> connections = new HashMap<Integer,Connection>();
+      long start = System.nanoTime();
+      long drainUntil = Long.MAX_VALUE;
+      int next = 0;
+      while (true) {
+         long now = System.nanoTime();
+         while (next < trace.size() && start + (long)(trace.get(next).micros * 1000 / speed) <= now)
+            play(trace.get(next++), connections, server);
+         long timeout;
+         if (next < trace.size())
+            timeout = Math.max(1, (start + (long)(trace.get(next).micros * 1000 / speed) - now) / 1000000);
+         else {
+            if (drainUntil == Long.MAX_VALUE)
+               drainUntil = now + DRAIN_TIME * 1000000L;
+            if (now >= drainUntil || !waiting(connections))
+               break;
+            timeout = 100;
+         }
+         selector.select(timeout);
+         Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+         while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            serve((Connection)key.attachment(), connections);
+         }
+      }
+      for (Connection c : connections.values()) {
+         for (String command : c.waitingCommands)
+            error("noanswer." + command);
+         c.channel.close();
+      }
+      selector.close();
+   }
+
+   private static boolean waiting(HashMap<Integer,Connection> connections) {
+      for (Connection c : connections.values())
+         if (c.waitingCommands.size() > 0 || c.linesReceived < 2)
+            return true;
+      return false;
+   }
+
+   //do what a record of the trace says
+   private static void play(Record record, HashMap<Integer,Connection> connections, InetSocketAddress server) {
+      Connection c = connections.get(record.client);
+      try {
+         if (record.type == OPEN) {
+            c = new Connection();
+            c.opened = System.nanoTime();
+            c.channel = SocketChannel.open();
+            c.channel.configureBlocking(false);
+            c.channel.connect(server);
+            c.key = c.channel.register(selector, SelectionKey.OP_CONNECT, c);
+            connections.put(record.client, c);
+         }
+         else if (c == null) //the capture started after this connection was opened
+            return;
+         else if (record.type == LINE) {
+            c.linesSent++;
+            if (c.linesSent > 3) { //after the handshake lines: a command
+               String command = record.line.split(" ")[0];
+               if (command.equals("ping") || command.equals("refresh") || command.equals("subscribe")) {
+                  c.waitingCommands.add(command);
+                  c.waitingSince.add(System.nanoTime());
+               }
+            }
+            c.messageOut.append(record.line).append('\n');
+            if (c.channel.isConnected())
+               c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+         }
+         else if (record.type == CLOSE) {
+            c.closing = true;
+            if (finished(c))
+               close(c, connections);
+         }
+      }
+      catch (IOException e) {
+         error("connect");
+         if (c != null)
+            close(c, connections);
+      }
+   }
+
+   //connect, read or write for a connection whose socket is ready
+   private static void serve(Connection c, HashMap<Integer,Connection> connections) {
+      try {
+         if (c.key.isConnectable()) {
+            c.channel.finishConnect();
+            c.key.interestOps(SelectionKey.OP_READ | (c.messageOut.length() > 0 ? SelectionKey.OP_WRITE : 0));
+            return;
+         }
+         if (c.key.isReadable()) {
+            if (c.channel.read(c.in) < 0) {
+               if (!c.closing)
+                  error("closedbyserver");
+               close(c, connections);
+               return;
+            }
+            c.in.flip();
+            int start = c.in.position();
+            for (int i = start; i < c.in.limit(); i++) {
+               if (c.in.get(i) == '\n') {
+                  ByteBuffer line = c.in.duplicate();
+                  line.position(start);
+                  line.limit(i);
+                  received(c, CHARSET.decode(line).toString());
+                  start = i + 1;
+               }
+            }
+            c.in.position(start);
+            c.in.compact();
+            if (!c.in.hasRemaining()) { //a line longer than the buffer, skip it
+               error("longline");
+               c.in.clear();
+            }
+            if (finished(c)) {
+               close(c, connections);
+               return;
+            }
+         }
+         if (c.key.isValid() && c.key.isWritable()) {
+            if ((c.pendingOut == null || !c.pendingOut.hasRemaining()) && c.messageOut.length() > 0) {
+               c.pendingOut = CHARSET.encode(c.messageOut.toString());
+               c.messageOut.setLength(0);
+            }
+            if (c.pendingOut != null)
+               c.channel.write(c.pendingOut);
+            if ((c.pendingOut == null || !c.pendingOut.hasRemaining()) && c.messageOut.length() == 0) {
+               if (finished(c))
+                  close(c, connections);
+               else
+                  c.key.interestOps(SelectionKey.OP_READ);
+            }
+         }
+      }
+      catch (IOException e) {
+         error(c.linesReceived == 0 ? "connect" : "io");
+         close(c, connections);
+      }
+   }
+
+   //a line from the server: the handshake, or the answer to a command
+   private static void received(Connection c, String line) {
+      c.linesReceived++;
+      if (c.linesReceived == 1) {
+         if (line.equals("busy"))
+            error("busy");
+         else if (!line.equals("ChatServer"))
+            error("handshake");
+         return;
+      }
+      if (c.linesReceived == 2) { //the secret ends the handshake
+         latency("handshake", c.opened);
+         return;
+      }
+      if (c.rateLimited) {
+         c.rateLimited = false;
+         error("ratelimited." + line);
+         answered(c, line);
+      }
+      else if (line.equals("ratelimited"))
+         c.rateLimited = true;
+      else if (line.equals("pingresponse"))
+         latency("ping", answered(c, "ping"));
+      else if (line.equals("endclients")) { //answers the oldest command waiting that is not a ping
+         for (String command : c.waitingCommands) {
+            if (!command.equals("ping")) {
+               latency(command, answered(c, command));
+               break;
+            }
+         }
+      }
+   }
+
+   //the time a command was sent, removed from the waiting ones, or 0 if it was not sent
+   private static long answered(Connection c, String command) {
+      Iterator<String> commands = c.waitingCommands.iterator();
+      Iterator<Long> times = c.waitingSince.iterator();
+      while (commands.hasNext()) {
+         String waiting = commands.next();
+         long time = times.next();
+         if (waiting.equals(command)) {
+            commands.remove();
+            times.remove();
+            return time;
+         }
+      }
+      return 0;
+   }
+
+   //whether a connection the trace closed has sent everything and got all its answers
+   private static boolean finished(Connection c) {
+      return c.closing && c.messageOut.length() == 0 && (c.pendingOut == null || !c.pendingOut.hasRemaining())
+            && c.waitingCommands.isEmpty() && c.linesReceived >= 2;
+   }
+
+   private static void close(Connection c, HashMap<Integer,Connection> connections) {
+      for (String command : c.waitingCommands)
+         error("noanswer." + command);
+      c.waitingCommands.clear();
+      c.waitingSince.clear();
+      try {
+         c.channel.close();
+      }
+      catch (IOException e) {
+      }
+      connections.values().remove(c);
+   }
+
+   private static void latency(String kind, long since) {
+      if (since == 0)
+         return;
+      ArrayList<Long> list = latencies.get(kind);
+      if (list == null) {
+         list = new ArrayList<Long>();
+         latencies.put(kind, list);
+      }
+      list.add((System.nanoTime() - since) / 1000);
+   }
+
+   private static void error(String kind) {
+      Integer n = errors.get(kind);
+      errors.put(kind, n == null ? 1 : n + 1);
+   }
+
+   //count and percentiles (us) of every kind of latency, and the error counts
+   private static TreeMap<String,Double> report() {
+      TreeMap<String,Double> report = new TreeMap<String,Double>();
+      for (Map.Entry<String,ArrayList<Long>> entry : latencies.entrySet()) {
+         ArrayList<Long> list = entry.getValue();
+         Collections.sort(list);
+         String kind = entry.getKey();
+         report.put(kind + ".count", (double)list.size());
+         report.put(kind + ".p50", (double)list.get(list.size() * 50 / 100));
+         report.put(kind + ".p90", (double)list.get(list.size() * 90 / 100));
+         report.put(kind + ".p99", (double)list.get(list.size() * 99 / 100));
+         report.put(kind + ".max", (double)list.get(list.size() - 1));
+      }
+      for (Map.Entry<String,Integer> entry : errors.entrySet())
+         report.put("error." + entry.getKey(), (double)entry.getValue());
+      return report;
+   }
+
+   //print every value next to the one of an earlier report, with the change
+   private static void compare(TreeMap<String,Double> report, String fileName) throws IOException {
+      TreeMap<String,Double> previous = new TreeMap<String,Double>();
+      BufferedReader in = new BufferedReader(new FileReader(fileName));
+      String line;
+      while ((line = in.readLine()) != null) {
+         String[] parts = line.trim().split(" ");
+         if (parts.length == 2)
+            previous.put(parts[0], Double.parseDouble(parts[1]));
+      }
+      in.close();
+      TreeSet<String> keys = new TreeSet<String>(report.keySet());
+      keys.addAll(previous.keySet());
+      System.out.println();
+      System.out.println("Compared with " + fileName + ":");
+      for (String key : keys) {
+         double now = report.containsKey(key) ? report.get(key) : 0;
+         double before = previous.containsKey(key) ? previous.get(key) : 0;
+         String change = before == 0 ? "" : String.format(" (%+.1f%%)", 100 * (now - before) / before);
+         System.out.println(key + " " + format(now) + " was " + format(before) + change);
+      }
+   }
+
+   private static String format(double value) {
+      return value == Math.rint(value) ? Long.toString((long)value) : Double.toString(value);
+   }
+
+}
@@ -1,32 +1,97 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
- * 
+ *
  * @author anhhct
- * ChatServer.java : The server of the chat application, is responsible for waiting connection from 
+ * ChatServer.java : The server of the chat application, is responsible for waiting connection from
  * clients, manage a list of connected clients with their secret token, send the list with clients' info
  * to all connected clients so that they can make their own connections with others for chatting.
- * Run as threads for continuous data sending and receiving.
- * The server run as a command-line application
+ * One accept loop hands the connections to a number of I/O reactors (one per core by default), each
+ * reactor owns its share of clients and their outbound buffers. Broadcasts between reactors go through
+ * lock-free queues. Clients on the same machine can also connect over a Unix domain socket (see
+ * LocalSockets), and the local socket a client listens on goes into its info for the others.
+ * A connection has a few seconds for each line of its handshake and for the whole of it, and gets the
+ * state of a client session only when it is through; the reactors log how long the handshakes take.
+ * The reactors ping their clients and keep a histogram of how long the answers take; a client on a
+ * slow link is pinged less often and gets the news about other clients in batches.
+ * The server run as a command-line application: java ChatServer [port [reactors]]
+ * With -Dchat.capture=file, the connections and everything the clients send are captured to a trace
+ * file that ChatReplay can play back.
  *
  */
 
 
 public class ChatServer {
-   
+
    private static final int DEFAULT_PORT = 5000; //the default communicating port
-   
+
+   private static final int MAX_LINE_LENGTH = 8192; //longest line accepted from a client
+
+   private static final int MAX_OUTPUT = 1024*1024; //characters waiting for a client besides its lists, more drops it
+
+   private static final int SWEEP_INTERVAL = 5000; //how often (ms) a reactor looks for clients to ping
+
+   private static final int PROBE_INTERVAL = 60000; //about how often (ms) a client that answers pings gets one
+
+   private static final long SLOW_RTT = 250000; //median round trip (us) from which a client's link counts as slow
+
+   private static final int BATCH_DELAY = 500; //how long (ms) news for a slow client is held to go in one write
+
+   private static final int MAX_PENDING_HANDSHAKES = 256; //connections allowed to be in their handshake at once
+
+   private static final int HANDSHAKE_STEP_TIMEOUT = 5000; //ms a connection in its handshake has for each line
+
+   private static final int HANDSHAKE_TIMEOUT = 10000; //ms a connection has for the whole handshake
+
+   private static final int HANDSHAKE_CHECK = 1000; //how often (ms) a reactor looks for handshakes past their deadline
+
+   private static final int STATS_INTERVAL = 60000; //how often (ms) a reactor logs how its handshakes went
+
+   private static final Charset CHARSET = Charset.defaultCharset(); //same as the client's readers/writers
+
    private static String shutdownString; //shutdown signal
 
    private static int listeningPort;
-   private static ServerSocket listener;  
-   
+   private static ServerSocketChannel listener;
+   private static ServerSocketChannel localListener; //Unix domain socket for clients on this machine, or null
+   private static int nextReactor; //the reactor for the next connection
+
    private static ClientList clients; //list of connected clients
-   
-   private volatile static boolean isShutDown;  //whether the server is shut down  
-   
+
+   private static Roster roster = new Roster(); //addresses, ports and secrets of the connected clients
+
+   private static Reactor[] reactors; //the I/O reactors, connections are spread over them
+
+   private static EventLog log; //connects, handshakes, errors and removals, written to rotating files
+
+   private static TraceCapture capture; //traffic capture for ChatReplay, null when not capturing
+
+   private volatile static boolean isShutDown;  //whether the server is shut down
+
+   private static AtomicInteger pendingHandshakes = new AtomicInteger(); //connections not yet through the handshake
+
    public static void main(String[] args) {
       listeningPort = DEFAULT_PORT;
       if (args.length > 0) { //if port is given via command line
@@ -39,302 +104,1427 @@ public class ChatServer {
          catch (NumberFormatException e) {
          }
       }
+      int reactorCount = Runtime.getRuntime().availableProcessors();
+      if (args.length > 1) { //if the number of reactors is given via command line
+         try {
+            int n = Integer.parseInt(args[1]);
+            if (n <= 0)
+               throw new NumberFormatException();
+            reactorCount = n;
+         }
+         catch (NumberFormatException e) {
+         }
+      }
       try {
-         listener = new ServerSocket(listeningPort);
+         listener = ServerSocketChannel.open();
+         listener.bind(new InetSocketAddress(listeningPort));
       }
       catch (Exception e) {
          System.out.println("Can't create listening socket on port " + listeningPort);
          System.exit(1);
       }
-      System.out.println("Listening on port " + listeningPort);
-      clients = new ClientList();
       try {
-         while (true) { // Listen until error occurs or socket is closed.
-            Socket socket = listener.accept();
-            clients.add( socket );
+         localListener = LocalSockets.listen(LocalSockets.serverPath(listeningPort));
+      }
+      catch (LocalSockets.InUseException e) { //clients on this machine would go to whoever has it
+         System.out.println("Can't listen on " + LocalSockets.serverPath(listeningPort) + ": " + e.getMessage());
+         System.exit(1);
+      }
+      catch (Exception e) { //clients on this machine use TCP like the others
+         System.out.println("Can't listen on " + LocalSockets.serverPath(listeningPort) + ": " + e);
+      }
+      log = new EventLog("chatserver.log");
+      if (System.getProperty("chat.capture") != null) {
+         try {
+            capture = new TraceCapture(System.getProperty("chat.capture"));
          }
+         catch (IOException e) {
+            System.out.println("Can't capture to " + System.getProperty("chat.capture") + ": " + e);
+            System.exit(1);
+         }
+      }
+      clients = new ClientList();
+      reactors = new Reactor[reactorCount];
+      try {
+         for (int i = 0; i < reactors.length; i++)
+            reactors[i] = new Reactor(i);
+      }
+      catch (IOException e) {
+         System.out.println("Can't create I/O reactors: " + e);
+         System.exit(1);
+      }
+      for (Reactor reactor : reactors)
+         reactor.start();
+      System.out.println("Listening on port " + listeningPort + " with " + reactors.length + " reactors");
+      log.add(EventLog.START, 0, "port " + listeningPort + ", " + reactors.length + " reactors");
+      if (localListener != null) {
+         Thread localAcceptor = new Thread("LocalAcceptor") {
+            public void run() {
+               try {
+                  while (true)
+                     accepted(localListener.accept());
+               }
+               catch (Exception e) { //closed at shutdown
+               }
+            }
+         };
+         localAcceptor.setDaemon(true);
+         localAcceptor.start();
+      }
+      try {
+         while (true) // Listen until error occurs or socket is closed.
+            accepted(listener.accept());
       }
       catch (Throwable e) {
          if (!isShutDown) { // Don't report an error after normal shutdown.
             System.out.println("Server closed with error:");
             System.out.println(e);
+            log.add(EventLog.ERROR, 0, "server closed with error: " + e);
          }
       }
       finally {
          System.out.println("Shutting down.");
+         log.add(EventLog.STOP, 0, "shutting down");
+         if (localListener != null) {
+            try {
+               localListener.close();
+               Files.deleteIfExists(LocalSockets.serverPath(listeningPort));
+            }
+            catch (IOException e) {
+            }
+         }
          clients.shutDown();
+         log.close();
+         if (capture != null)
+            capture.close();
+      }
+   }
+
+   //hand a new connection, over TCP or the local socket, to a reactor
+   private static synchronized void accepted(SocketChannel channel) {
+      if (pendingHandshakes.get() >= MAX_PENDING_HANDSHAKES) {
+         refuse(channel); //too many clients connecting at the same time
+         log.add(EventLog.REFUSE, 0, "too many pending handshakes");
+         return;
+      }
+      Reactor reactor = null;
+      for (int i = 0; i < reactors.length && reactor == null; i++) { //round robin over the reactors
+         if (!reactors[nextReactor].closed)
+            reactor = reactors[nextReactor];
+         nextReactor = (nextReactor + 1) % reactors.length;
+      }
+      if (reactor == null) { //all of them failed
+         refuse(channel);
+         return;
       }
+      pendingHandshakes.incrementAndGet();
+      reactor.register(new Client(channel));
    }
-   
+
+   //the address of a client, the loopback address for one on the local socket
+   private static InetAddress remoteAddress(SocketChannel channel) throws IOException {
+      SocketAddress address = channel.getRemoteAddress();
+      if (address instanceof InetSocketAddress)
+         return ((InetSocketAddress)address).getAddress();
+      return InetAddress.getLoopbackAddress();
+   }
+
+   //the address the other clients get for a client: a client on the local socket is on this machine,
+   //so it gets the address of the machine, which clients on other machines can reach too
+   private static InetAddress advertisedAddress(SocketChannel channel) throws IOException {
+      SocketAddress address = channel.getRemoteAddress();
+      if (address instanceof InetSocketAddress)
+         return ((InetSocketAddress)address).getAddress();
+      return machineAddress();
+   }
+
+   private static InetAddress machineAddress; //found when the first client comes on the local socket
+
+   //the address of this machine for the network: its host name's if that is not a loopback address,
+   //otherwise the first global or site local address of an interface that is up, IPv4 first
+   private static synchronized InetAddress machineAddress() {
+      if (machineAddress != null)
+         return machineAddress;
+      try {
+         InetAddress host = InetAddress.getLocalHost();
+         if (! host.isLoopbackAddress())
+            return machineAddress = host;
+      }
+      catch (IOException e) {
+      }
+      InetAddress found = null;
+      try {
+         for (NetworkInterface network : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (! network.isUp() || network.isLoopback())
+               continue;
+            for (InetAddress address : Collections.list(network.getInetAddresses())) {
+               if (address.isLoopbackAddress() || address.isLinkLocalAddress() || address.isAnyLocalAddress())
+                  continue;
+               if (found == null || (address instanceof Inet4Address && !(found instanceof Inet4Address)))
+                  found = address;
+            }
+         }
+      }
+      catch (IOException e) {
+      }
+      return machineAddress = found != null ? found : InetAddress.getLoopbackAddress();
+   }
+
+   //tell a connection that the server is too busy for it, instead of the handshake, and close it
+   private static void refuse(SocketChannel channel) {
+      try {
+         channel.write(CHARSET.encode("busy\n"));
+      }
+      catch (Exception e) {
+      }
+      try {
+         channel.close();
+      }
+      catch (Exception e) {
+      }
+   }
+
    //Socket in java use getInetAddress to get the IP address represented by java's InetAddress object
    //This helps convert it to string like xxx.xxx.xxx.xxx
    private static String convertAddress(InetAddress ip) {
       byte[] bytes = ip.getAddress();
-      if (bytes.length == 4) {
-         String addr = "" + ( (int)bytes[0] & 0xFF );
-         for (int i = 1; i < 4; i++)
-            addr += "." + ( (int)bytes[i] & 0xFF );
-         return addr;
-      }
-      else if (bytes.length == 16) {
-         String[] hex = new String[16];
-         for (int i = 0; i < 16; i++)
-            hex[i] = Integer.toHexString( (int)bytes[i] & 0xFF );
-         String addr = "" + hex[0] + hex[1];
-         for (int i = 2; i < 16; i += 2)
-            addr += ":" + hex[i] + hex[i+1];
-         return addr;
-      }
-      else
+      if (bytes.length != 4 && bytes.length != 16)
          throw new IllegalArgumentException("Unknown IP address type");
+      StringBuilder addr = new StringBuilder();
+      appendAddress(bytes, 0, bytes.length, addr);
+      return addr.toString();
+   }
+
+   //append an address of 4 or 16 bytes as convertAddress writes it
+   private static void appendAddress(byte[] bytes, int offset, int length, StringBuilder addr) {
+      if (length == 4) {
+         addr.append((int)bytes[offset] & 0xFF);
+         for (int i = 1; i < 4; i++)
+            addr.append('.').append((int)bytes[offset + i] & 0xFF);
+      }
+      else {
+         for (int i = 0; i < 16; i += 2) {
+            if (i > 0)
+               addr.append(':');
+            addr.append(Integer.toHexString((int)bytes[offset + i] & 0xFF));
+            addr.append(Integer.toHexString((int)bytes[offset + i + 1] & 0xFF));
+         }
+      }
    }
-   
-   
-  
-   private static class ClientList { //A list of client objects
-      
-      ArrayList<Client> clientList = new ArrayList<Client>(); // The clients.      
-      
-      synchronized void add(Socket socket) { //add a client
-         Client c = new Client(socket);
-         System.out.println("Client " + c.clientNumber + " created.");
-         clientList.add(c);
-      }      
-      
-      synchronized void remove(Client client) { //remove a client
-         System.out.println("Client " + client.clientNumber + " removed.");
-         if (!isShutDown && clientList.remove(client) && client.info != null) {
-            for (Client c : clientList)
-               c.clientRemoved(client); //announce that the client is removed
-         }
-      }
-      
+
+
+
+   static class ClientList { //A list of the clients that finished their handshake
+
+      static final int LOG_SIZE = 8192; //number of changes kept for clients that resume
+
+      Set<Client> clientList = ConcurrentHashMap.newKeySet(); // The clients, from all reactors.
+      ConcurrentHashMap<String,Set<Client>> byName = new ConcurrentHashMap<String,Set<Client>>();
+      //reverse subscription index: for each name, the clients that want presence news about it
+      ConcurrentHashMap<String,Set<Client>> watchers = new ConcurrentHashMap<String,Set<Client>>();
+
+      //the version of the list is epoch:changes, the epoch tells versions of different server runs apart
+      final String epoch = Long.toString(System.currentTimeMillis(), 36);
+      volatile long version; //number of changes made to the list
+      String[] changeLog = new String[LOG_SIZE]; //the last changes, as sent to the clients
+      int[] changeSources = new int[LOG_SIZE]; //number of the client each change is about
+      String[] changeNames = new String[LOG_SIZE]; //name of the client each change is about
+
+      void remove(Client client) { //remove a client
+         log.add(EventLog.REMOVE, client.clientNumber, client.rttSummary());
+         if (client.subscription != null)
+            for (String name : client.subscription)
+               unindex(watchers, name, client);
+         if (!isShutDown && clientList.remove(client)) {
+            unindex(byName, client.name, client);
+            changed(client, "removeclient"); //announce the removal
+            roster.free(client);
+         }
+      }
+
       // announce when a new client is connectd
-      synchronized void announceConnection(Client newlyConnectedClient) {
-    	  //print server log
-         System.out.println("Client " + newlyConnectedClient.clientNumber + 
-               " connection established with info " + newlyConnectedClient.info);
-         for (Client c : clientList)
-            c.clientAdded(newlyConnectedClient); //and announce to other clients
-      }
-      
+      void announceConnection(Client newlyConnectedClient) {
+         log.add(EventLog.HANDSHAKE, newlyConnectedClient.clientNumber, roster.describe(newlyConnectedClient));
+         clientList.add(newlyConnectedClient);
+         index(byName, newlyConnectedClient.name, newlyConnectedClient);
+         changed(newlyConnectedClient, "addclient");
+      }
+
+      // change the names a client wants presence news about, null for everybody
+      void subscribe(Client client, Set<String> names) {
+         if (client.subscription != null)
+            for (String name : client.subscription)
+               unindex(watchers, name, client);
+         client.subscription = names;
+         if (names != null)
+            for (String name : names)
+               index(watchers, name, client);
+      }
+
+      static void index(ConcurrentHashMap<String,Set<Client>> map, String name, Client client) {
+         map.compute(name, (n, set) -> {
+            if (set == null)
+               set = ConcurrentHashMap.newKeySet(1); //most names have one client, a default table is 16
+            set.add(client);
+            return set;
+         });
+      }
+
+      static void unindex(ConcurrentHashMap<String,Set<Client>> map, String name, Client client) {
+         map.computeIfPresent(name, (n, set) -> {
+            set.remove(client);
+            return set.isEmpty() ? null : set; //don't keep names nobody has
+         });
+      }
+
+      // give a change a new version, log it and announce it
+      //this is synchronized so that every reactor gets the changes in version order
+      synchronized void changed(Client client, String command) {
+         String message = command + '\n' + roster.info(client) + "\nversion\n" + versionString(version + 1) + '\n';
+         record(client, message);
+         broadcast(new Event(client, message, null)); //for the clients that watch everybody
+         Set<Client> interested = watchers.get(client.name);
+         if (interested != null)
+            for (Client c : interested)
+               if (c != client)
+                  c.reactor.post(new Event(client, message, c));
+      }
+
+      // keep a change in the log under the next version
+      synchronized void record(Client client, String message) {
+         long v = version + 1;
+         changeLog[(int)(v % LOG_SIZE)] = message;
+         changeSources[(int)(v % LOG_SIZE)] = client.clientNumber;
+         changeNames[(int)(v % LOG_SIZE)] = client.name;
+         version = v;
+      }
+
+      // the changes a client has not seen since the given version, except the ones about the client
+      //itself, or null if that version is from another server run or too old to be in the log
+      synchronized String changesSince(String since, Client client) {
+         int colon = since.indexOf(':');
+         if (colon < 0 || ! since.substring(0, colon).equals(epoch))
+            return null;
+         long v;
+         try {
+            v = Long.parseLong(since.substring(colon + 1));
+         }
+         catch (NumberFormatException e) {
+            return null;
+         }
+         if (v > version || v < version - LOG_SIZE)
+            return null;
+         StringBuilder changes = new StringBuilder();
+         for (long i = v + 1; i <= version; i++)
+            if (changeSources[(int)(i % LOG_SIZE)] != client.clientNumber
+                  && client.watches(changeNames[(int)(i % LOG_SIZE)]))
+               changes.append(changeLog[(int)(i % LOG_SIZE)]);
+         changes.append("version\n").append(versionString(version)).append('\n');
+         return changes.toString();
+      }
+
+      String versionString(long v) {
+         return epoch + ":" + v;
+      }
+
+      // hand an announcement to the reactors that have clients watching everybody,
+      //each of them fans it out to those of its own clients
+      void broadcast(Event event) {
+         for (Reactor reactor : reactors)
+            if (reactor.watchingAllCount > 0)
+               reactor.post(event);
+      }
+
       // make a copy of the clients list to be use in other function
       //because the original list may change asynchronously because of threads
-      synchronized ArrayList<Client> copy() {
+      ArrayList<Client> copy() {
+         return new ArrayList<Client>(clientList);
+      }
+
+      // the clients with one of the given names
+      ArrayList<Client> copy(Set<String> names) {
          ArrayList<Client> c = new ArrayList<Client>();
-         for (Client client : clientList)
-            c.add(client);
+         for (String name : names) {
+            Set<Client> set = byName.get(name);
+            if (set != null)
+               c.addAll(set);
+         }
          return c;
       }
-      
+
       //shut down all connections
-      synchronized void shutDown() {
-         for (Client client : clientList)
-            client.shutDown();
+      void shutDown() {
+         for (Reactor reactor : reactors)
+            reactor.shutDown();
+      }
+
+   }
+
+   // The address, port and secret token of every client through the handshake, in arrays indexed by a
+   //slot number instead of strings and objects per client, so a server with very many clients has little
+   //for the garbage collector to trace. The info line of a client is only made when it is sent.
+   private static class Roster {
+
+      static final int ADDRESS_SIZE = 16; //IPv4 addresses are kept as IPv4-mapped IPv6 addresses
+
+      //encoders take the read lock, adding and freeing slots the write lock, so a slot is never
+      //given to another client while a list with the old one in it is made
+      ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+      SecureRandom random = new SecureRandom();
+      byte[] addresses = new byte[1024*ADDRESS_SIZE];
+      int[] ports = new int[1024];
+      long[] tokens = new long[1024]; //the random part of the secrets
+      String[] paths = new String[1024]; //the local socket of the client's chat listener, or null
+      int[] freeSlots = new int[1024];
+      int freeCount;
+      int used; //slots handed out at least once
+
+      //give a client a slot with its address and port, and a new secret token
+      void add(Client client, InetAddress address, int port, String path) {
+         lock.writeLock().lock();
+         try {
+            int slot;
+            if (freeCount > 0)
+               slot = freeSlots[--freeCount];
+            else {
+               if (used == ports.length) {
+                  addresses = Arrays.copyOf(addresses, 2*addresses.length);
+                  ports = Arrays.copyOf(ports, 2*ports.length);
+                  tokens = Arrays.copyOf(tokens, 2*tokens.length);
+                  paths = Arrays.copyOf(paths, 2*paths.length);
+               }
+               slot = used++;
+            }
+            byte[] bytes = address.getAddress();
+            int offset = slot*ADDRESS_SIZE;
+            Arrays.fill(addresses, offset, offset + ADDRESS_SIZE, (byte)0);
+            if (bytes.length == 4) {
+               addresses[offset + 10] = (byte)0xFF;
+               addresses[offset + 11] = (byte)0xFF;
+               System.arraycopy(bytes, 0, addresses, offset + 12, 4);
+            }
+            else
+               System.arraycopy(bytes, 0, addresses, offset, ADDRESS_SIZE);
+            ports[slot] = port;
+            paths[slot] = path;
+            tokens[slot] = random.nextLong();
+            client.slot = slot;
+         }
+         finally {
+            lock.writeLock().unlock();
+         }
+      }
+
+      void free(Client client) {
+         lock.writeLock().lock();
+         try {
+            if (client.slot < 0)
+               return;
+            if (freeCount == freeSlots.length)
+               freeSlots = Arrays.copyOf(freeSlots, 2*freeSlots.length);
+            freeSlots[freeCount++] = client.slot;
+            paths[client.slot] = null;
+            client.slot = -1;
+         }
+         finally {
+            lock.writeLock().unlock();
+         }
+      }
+
+      String secret(Client client) {
+         StringBuilder secret = new StringBuilder();
+         lock.readLock().lock();
+         try {
+            appendSecret(client, secret);
+         }
+         finally {
+            lock.readLock().unlock();
+         }
+         return secret.toString();
       }
-      
+
+      //clientName~ip~port~secret[~path], what other clients need to connect to this one
+      String info(Client client) {
+         StringBuilder info = new StringBuilder();
+         lock.readLock().lock();
+         try {
+            appendInfo(client, info, true);
+         }
+         finally {
+            lock.readLock().unlock();
+         }
+         return info.toString();
+      }
+
+      //the info without the secret, for the log
+      String describe(Client client) {
+         StringBuilder info = new StringBuilder();
+         lock.readLock().lock();
+         try {
+            appendInfo(client, info, false);
+         }
+         finally {
+            lock.readLock().unlock();
+         }
+         return info.toString();
+      }
+
+      //the info lines of many clients, with one lock for all of them
+      void appendInfos(Collection<Client> list, Client except, StringBuilder to) {
+         lock.readLock().lock();
+         try {
+            for (Client client : list)
+               if (client != except && client.slot >= 0)
+                  appendInfo(client, to, true).append('\n');
+         }
+         finally {
+            lock.readLock().unlock();
+         }
+      }
+
+      //called with the read lock held; without the secret the fields are name~ip~port[~path]
+      private StringBuilder appendInfo(Client client, StringBuilder to, boolean withSecret) {
+         int slot = client.slot;
+         to.append(client.name).append('~');
+         int offset = slot*ADDRESS_SIZE;
+         boolean mapped = true; //an IPv4 address
+         for (int i = 0; i < 12; i++)
+            if (addresses[offset + i] != (i < 10 ? 0 : (byte)0xFF))
+               mapped = false;
+         if (mapped)
+            appendAddress(addresses, offset + 12, 4, to);
+         else
+            appendAddress(addresses, offset, ADDRESS_SIZE, to);
+         to.append('~').append(ports[slot]);
+         if (withSecret)
+            appendSecret(client, to.append('~'));
+         if (paths[slot] != null)
+            to.append('~').append(paths[slot]);
+         return to;
+      }
+
+      //the client number and 16 hex digits of the token, always the same width for a client
+      private StringBuilder appendSecret(Client client, StringBuilder to) {
+         to.append(client.clientNumber).append('!');
+         long token = tokens[client.slot];
+         for (int shift = 60; shift >= 0; shift -= 4)
+            to.append(Character.forDigit((int)(token >>> shift) & 0xF, 16));
+         return to;
+      }
+
    }
-   
-   // Represent a client
-   private static class Client {
-      
+
+   // Records that connection threads hand to a background writer, used by the event log and the traffic
+   //capture. Connection threads only put records into a preallocated ring, the writer thread takes them
+   //out in order. Records that find the ring full are dropped and counted, so a connection thread never
+   //blocks or does I/O for them.
+   static abstract class RecordWriter extends Thread {
+
+      // one slot of the ring, filled by a connection thread and published by setting sequence
+      static class Record {
+         long time;
+         int type;
+         int client;
+         String text;
+         volatile long sequence; //number of the record in the slot plus one, 0 while being filled
+      }
+
+      final Record[] ring;
+      final AtomicLong claimed = new AtomicLong(); //records given a slot so far
+      volatile long written; //records taken out by the writer so far
+      final AtomicLong dropped = new AtomicLong(); //records lost because the ring was full
+      volatile boolean closed;
+
+      //capacity is a power of two
+      RecordWriter(String name, int capacity) {
+         super(name);
+         ring = new Record[capacity];
+         for (int i = 0; i < capacity; i++)
+            ring[i] = new Record();
+         setDaemon(true);
+      }
+
+      void put(long time, int type, int client, String text) {
+         long n;
+         do {
+            n = claimed.get();
+            if (n - written >= ring.length) { //the writer is behind, don't wait for it
+               dropped.incrementAndGet();
+               return;
+            }
+         } while (! claimed.compareAndSet(n, n + 1));
+         Record r = ring[(int)(n & (ring.length - 1))];
+         r.time = time;
+         r.type = type;
+         r.client = client;
+         r.text = text;
+         r.sequence = n + 1;
+      }
+
+      //write what is left and stop the writer
+      void close() {
+         closed = true;
+         try {
+            join(2000);
+         }
+         catch (InterruptedException e) {
+         }
+      }
+
+      public void run() {
+         try {
+            open();
+            while (true) {
+               long n = written;
+               Record r = ring[(int)(n & (ring.length - 1))];
+               if (r.sequence != n + 1) { //nothing published, flush and wait a little
+                  idle();
+                  if (closed && claimed.get() == n)
+                     break;
+                  try {
+                     Thread.sleep(10);
+                  }
+                  catch (InterruptedException ex) {
+                  }
+                  continue;
+               }
+               long time = r.time;
+               int type = r.type, client = r.client;
+               String text = r.text;
+               r.text = null;
+               written = n + 1; //the slot can be reused now
+               write(time, type, client, text);
+            }
+         }
+         catch (IOException e) {
+            failed(e);
+         }
+         finally {
+            finish();
+         }
+      }
+
+      void open() throws IOException {
+      }
+
+      //one record taken out of the ring
+      abstract void write(long time, int type, int client, String text) throws IOException;
+
+      //nothing to write at the moment
+      abstract void idle() throws IOException;
+
+      abstract void failed(IOException e);
+
+      //the writer stops, close the file
+      abstract void finish();
+   }
+
+   // The server's event log, written to a file, starting a new file when it is big.
+   static class EventLog extends RecordWriter {
+
+      static final int START = 0, STOP = 1, CONNECT = 2, HANDSHAKE = 3, REFUSE = 4, ERROR = 5, REMOVE = 6,
+            TIMEOUT = 7, HANDSHAKES = 8; //kinds of events
+      static final String[] KINDS = { "START", "STOP", "CONNECT", "HANDSHAKE", "REFUSE", "ERROR", "REMOVE",
+            "TIMEOUT", "HANDSHAKES" };
+
+      static final int CAPACITY = 8192; //slots in the ring, a power of two
+      static final long MAX_FILE_SIZE = 10*1024*1024; //size of a log file before a new one is started
+      static final int KEPT_FILES = 5; //old log files kept as name.1 ... name.5
+
+      final String fileName;
+      OutputStream out;
+      long size; //bytes in the current file
+      long droppedReported;
+
+      EventLog(String fileName) {
+         super("EventLog", CAPACITY);
+         this.fileName = fileName;
+         start();
+      }
+
+      //record an event, client is 0 for events about the whole server
+      void add(int kind, int client, String detail) {
+         put(System.currentTimeMillis(), kind, client, detail);
+      }
+
+      void open() throws IOException {
+         File file = new File(fileName);
+         size = file.length();
+         out = new BufferedOutputStream(new FileOutputStream(file, true));
+      }
+
+      void write(long time, int kind, int client, String detail) throws IOException {
+         size += write(out, line(time, KINDS[kind], client, detail));
+         if (size > MAX_FILE_SIZE) {
+            out.close();
+            rotate();
+            out = new BufferedOutputStream(new FileOutputStream(fileName, true));
+            size = 0;
+         }
+      }
+
+      void idle() throws IOException {
+         long lost = dropped.get();
+         if (lost != droppedReported) {
+            String line = line(System.currentTimeMillis(), "DROPPED", 0, (lost - droppedReported) + " events");
+            size += write(out, line);
+            droppedReported = lost;
+         }
+         out.flush();
+      }
+
+      void failed(IOException e) {
+         System.out.println("Can't write event log " + fileName + ": " + e);
+      }
+
+      void finish() {
+         if (out != null) {
+            try {
+               out.close();
+            }
+            catch (IOException e) {
+            }
+         }
+      }
+
+      //write a line in UTF-8, returns the number of bytes, which is what the size limit counts
+      static int write(OutputStream out, String line) throws IOException {
+         byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+         out.write(bytes);
+         return bytes.length;
+      }
+
+      //one event as a line: time, kind, client number and detail separated by tabs
+      static String line(long time, String kind, int client, String detail) {
+         return time + "\t" + kind + "\t" + client + "\t" + (detail == null ? "" : detail) + "\n";
+      }
+
+      //name.4 becomes name.5 and so on, the current file becomes name.1
+      void rotate() {
+         new File(fileName + "." + KEPT_FILES).delete();
+         for (int i = KEPT_FILES - 1; i >= 1; i--)
+            new File(fileName + "." + i).renameTo(new File(fileName + "." + (i + 1)));
+         new File(fileName).renameTo(new File(fileName + ".1"));
+      }
+
+   }
+
+   // Captures the traffic for ChatReplay: connections opened and closed, and the lines the clients send.
+   //The trace file has the int MAGIC, the start time in ms, then records: a type byte, the microseconds
+   //since the start and the client number as variable length numbers, and for LINE the length and the
+   //UTF-8 bytes of the line.
+   private static class TraceCapture extends RecordWriter {
+
+      static final int MAGIC = 0x43485452; //"CHTR"
+      static final int OPEN = 1, LINE = 2, CLOSE = 3;
+      static final int CAPACITY = 65536; //records waiting for the writer before new ones are dropped
+
+      long startNanos = System.nanoTime();
+      String fileName;
+      DataOutputStream out;
+
+      TraceCapture(String fileName) throws IOException {
+         super("TraceCapture", CAPACITY);
+         this.fileName = fileName;
+         out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 65536));
+         out.writeInt(MAGIC);
+         out.writeLong(System.currentTimeMillis());
+         start();
+      }
+
+      void add(int type, int client, String line) {
+         put((System.nanoTime() - startNanos) / 1000, type, client, line);
+      }
+
+      void write(long micros, int type, int client, String line) throws IOException {
+         out.writeByte(type);
+         writeNumber(micros);
+         writeNumber(client);
+         if (type == LINE) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            writeNumber(bytes.length);
+            out.write(bytes);
+         }
+      }
+
+      void idle() throws IOException {
+         out.flush();
+      }
+
+      void failed(IOException e) {
+         System.out.println("Capture to " + fileName + " failed: " + e);
+      }
+
+      void finish() {
+         try {
+            out.close();
+         }
+         catch (IOException e) {
+         }
+         if (dropped.get() > 0)
+            System.out.println("Capture dropped " + dropped.get() + " records.");
+      }
+
+      void writeNumber(long n) throws IOException {
+         while (n >= 0x80) {
+            out.writeByte((int)(n | 0x80));
+            n >>>= 7;
+         }
+         out.writeByte((int)n);
+      }
+   }
+
+   // An announcement for one client, or for all clients watching everybody except the one it is about
+   private static class Event {
+      final Client source;
+      final String message;
+      final Client target; //null for all
+      Event(Client source, String message, Client target) {
+         this.source = source;
+         this.message = message;
+         this.target = target;
+      }
+   }
+
+   // A token bucket: holds up to capacity tokens, refilled at a fixed rate, one token per request
+   static class TokenBucket {
+      final double capacity;
+      final double tokensPerMilli;
+      double tokens;
+      long lastRefill;
+      TokenBucket(int capacity, double tokensPerSecond) {
+         this.capacity = capacity;
+         this.tokensPerMilli = tokensPerSecond / 1000;
+         tokens = capacity;
+         lastRefill = System.currentTimeMillis();
+      }
+      boolean tryTake(long now) { //take a token if there is one
+         if (! has(now))
+            return false;
+         tokens--;
+         return true;
+      }
+      boolean has(long now) { //whether there is a token, without taking it
+         tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerMilli);
+         lastRefill = now;
+         return tokens >= 1;
+      }
+   }
+
+   // Durations, like the round trips of a client's answers to pings, counted in buckets of doubling width:
+   //the first holds times up to BASE us, the last everything above. When a bucket is full all of them are
+   //halved, so old times fade out and the counts follow the link as it changes.
+   private static class TimeHistogram {
+      static final int BUCKETS = 16;
+      static final long BASE = 250;
+      byte[] counts = new byte[BUCKETS];
+      void add(long micros) {
+         int bucket = 0;
+         while (bucket < BUCKETS - 1 && micros > BASE << bucket)
+            bucket++;
+         if (counts[bucket] == Byte.MAX_VALUE)
+            for (int i = 0; i < BUCKETS; i++)
+               counts[i] >>= 1;
+         counts[bucket]++;
+      }
+      //upper bound (us) of the bucket that the given fraction of the times falls within
+      long percentile(double fraction) {
+         int total = 0;
+         for (byte count : counts)
+            total += count;
+         int seen = 0;
+         for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen > 0 && seen >= fraction * total)
+               return BASE << i;
+         }
+         return BASE << (BUCKETS - 1);
+      }
+      void clear() {
+         Arrays.fill(counts, (byte)0);
+      }
+   }
+
+   // Represent a client. All fields except slot and subscription are only touched by the owning reactor's thread.
+   static class Client {
+
+      static final int HANDSHAKE = 0, NAME = 1, PORT = 2, CONNECTED = 3; //stages of the connection
+
       static int clientsCreated; //number of client created
       int clientNumber;  //each client has a specific representative number
-      volatile String info; //info of a client, made of the form clientName~ip~port~secret;
-      String messageOut = ""; // Message waiting to be sent by writer thread.
-      ClientThread clientThread; 
-      ReaderThread readerThread;
-      String secret;
-      Socket socket;
-      volatile boolean connected;
-      volatile boolean closed;      
-      
+      int slot = -1; //where the roster keeps the address, port and secret, -1 before the handshake ends
+      StringBuilder messageOut; // Messages waiting to be written by the reactor, null when there are none.
+      ByteBuffer pendingOut; // Encoded messages that the socket did not take yet.
+      int listAllowance; // Room for the client lists waiting to be written, on top of MAX_OUTPUT.
+      boolean behind; // More than that waits, the reactor drops the client.
+      byte[] partialLine; // The start of a line that has not ended yet, the reactor's buffer is shared.
+      String name; //the handle as it is in the info
+      volatile Set<String> subscription; //names this client wants presence news about, null for everybody
+      Set<String> requestedSubscription; //sent with the handshake
+      String resumeFrom; //version of the list the client has seen before reconnecting
+      SocketChannel channel;
+      SelectionKey key;
+      Reactor reactor; //the reactor that owns this client
+      int stage = HANDSHAKE;
+      long handshakeStart; //System.nanoTime() when the reactor took the connection, for the stats
+      long handshakeEnd; //when the whole handshake must be through
+      long deadline; //when the handshake line the client is at must have come in
+      long nextPing; //when to send the next ping, which also measures the round trip
+      long pingSent; //System.nanoTime() of the ping waiting for its pingresponse, 0 if none
+      TimeHistogram rtt; //null until the client answered a ping, old clients never do
+      long flushAt; //when news held back for a slow link is written, 0 if none is held
+      //the limits on commands, made when the handshake is through, a connection may never get there;
+      //the ones for a kind of command only when the first comes, a bucket nobody took from is full anyway
+      TokenBucket commandLimit; //all commands from the client
+      TokenBucket refreshLimit; //refresh costs a list of all clients
+      TokenBucket pingLimit;
+      TokenBucket rejectLimit; //a client that keeps going after rejections is dropped
+      boolean closed;
+
       //constructor
-      Client(Socket socket) {
+      Client(SocketChannel channel) {
          clientsCreated++;
          clientNumber = clientsCreated;
-         secret = clientNumber + "!" + Math.random();
-         this.socket = socket;
-         clientThread = new ClientThread();
-         clientThread.start();
-      }      
-      
-      
-      //announce other clients about removal of a client
-      //by sending the handle "removeclient\n" to be parse as a command at the client side
-      //along with info of the removed client
-      void clientRemoved(Client c) {
-         if (c != this) {
-            send("removeclient\n" + c.info + '\n');
-         }
-      }      
-      
-      //announce other clients about a newly added client
-      //by sending handle "removeclient\n" and the added client's info
-      void clientAdded(Client c) {
-         if (c != this) {
-            send("addclient\n" + c.info + '\n');
-         }
-      }      
-      
-      synchronized void shutDown() { //shut down the connection
-         if (! closed) {
-            closed = true;
+         this.channel = channel;
+      }
+
+
+      //announce other clients about removal or addition of a client
+      //by sending the handle "removeclient\n" or "addclient\n" to be parse as a command at the client side
+      //along with info of the client
+      //a slow link gets the news of BATCH_DELAY ms in one write instead of one write each
+      void announce(Event event) {
+         if (event.source != this && stage == CONNECTED && !closed) {
+            if (!slow())
+               send(event.message);
+            else {
+               queue(event.message);
+               if (flushAt == 0 && (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                  flushAt = System.currentTimeMillis() + BATCH_DELAY;
+                  reactor.held.add(this);
+               }
+            }
+         }
+      }
+
+      boolean slow() {
+         return rtt != null && rtt.percentile(0.5) >= SLOW_RTT;
+      }
+
+      //send a ping and time the answer; an unanswered ping keeps its time, the answers come in order
+      void ping() {
+         nextPing = nextPingTime();
+         if (pingSent == 0)
+            pingSent = System.nanoTime();
+         send("ping\n");
+      }
+
+      void pingAnswered() {
+         if (pingSent != 0) {
+            if (rtt == null)
+               rtt = new TimeHistogram();
+            rtt.add((System.nanoTime() - pingSent) / 1000);
+            pingSent = 0;
+         }
+      }
+
+      boolean watches(String name) {
+         Set<String> names = subscription;
+         return names == null || names.contains(name);
+      }
+
+      // the names in a subscription, separated by "~", an empty list means everybody
+      static Set<String> parseNames(String list) {
+         Set<String> names = new HashSet<String>();
+         for (String name : list.split("~"))
+            if (name.length() > 0)
+               names.add(name.intern()); //the same String as the name of the client and in other lists
+         return names.isEmpty() ? null : names;
+      }
+
+      //start watching other names, and send the list that goes with them
+      void subscribe(Set<String> names) {
+         clients.subscribe(this, names);
+         reactor.watchingAll(this, names == null);
+         sendClientList();
+      }
+
+      void send(String message) { //send a message out
+         queue(message); //the reactor writes it when the socket is ready
+         if (key.isValid())
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+
+      //add to the messages waiting; a client that doesn't read them is dropped before they fill the memory
+      void queue(String message) {
+         if (behind)
+            return;
+         if (messageOut == null)
+            messageOut = new StringBuilder(message.length());
+         messageOut.append(message);
+         int waiting = messageOut.length() + (pendingOut == null ? 0 : pendingOut.remaining());
+         if (waiting > MAX_OUTPUT + listAllowance) {
+            behind = true;
+            reactor.behind.add(this);
+         }
+      }
+
+      void sendClientList() { //send out the list of clients to this client
+         long version = clients.version; //read first, the copy has at least the changes up to this one
+         Set<String> names = subscription;
+         ArrayList<Client> c = names == null ? clients.copy() : clients.copy(names);
+         StringBuilder list = new StringBuilder("clients\n");
+         roster.appendInfos(c, this, list);
+         list.append("endclients\nversion\n").append(clients.versionString(version)).append('\n');
+         listAllowance += list.length(); //a long list is no sign of a client that doesn't read
+         send(list.toString());
+      }
+
+      //write as much of the waiting messages as the socket takes without blocking
+      void flush() throws IOException {
+         if (pendingOut == null || !pendingOut.hasRemaining()) {
+            if (messageOut != null) {
+               pendingOut = CHARSET.encode(messageOut.toString());
+               messageOut = null; //an idle client keeps no buffer
+            }
+         }
+         if (pendingOut != null && pendingOut.hasRemaining())
+            channel.write(pendingOut);
+         if (pendingOut != null && !pendingOut.hasRemaining())
+            pendingOut = null;
+         if (pendingOut == null && messageOut == null) {
+            listAllowance = 0;
+            key.interestOps(SelectionKey.OP_READ);
+         }
+      }
+
+      //read what is available and handle every complete line
+      //returns false when the connection was closed from the other side
+      boolean read() throws Exception {
+         ByteBuffer in = reactor.readBuffer;
+         in.clear();
+         if (partialLine != null) {
+            in.put(partialLine);
+            partialLine = null;
+         }
+         if (channel.read(in) < 0)
+            return false;
+         in.flip();
+         int start = in.position();
+         for (int i = start; i < in.limit(); i++) {
+            if (in.get(i) == '\n') {
+               int end = i;
+               if (end > start && in.get(end - 1) == '\r')
+                  end--;
+               if (end - start > MAX_LINE_LENGTH) //the whole line, with the part kept from the last read
+                  throw new Exception("Line from client is too long.");
+               ByteBuffer line = in.duplicate();
+               line.position(start);
+               line.limit(end);
+               String received = CHARSET.decode(line).toString();
+               if (capture != null)
+                  capture.add(TraceCapture.LINE, clientNumber, received);
+               lineReceived(received);
+               start = i + 1;
+               if (isShutDown)
+                  return true;
+            }
+         }
+         if (in.limit() - start > MAX_LINE_LENGTH)
+            throw new Exception("Line from client is too long.");
+         if (start < in.limit()) {
+            partialLine = new byte[in.limit() - start];
+            in.position(start);
+            in.get(partialLine);
+         }
+         return true;
+      }
+
+      //the handshake first: client identity, name and port, then the commands from the client
+      void lineReceived(String line) throws Exception {
+         switch (stage) {
+         case HANDSHAKE:
+            if (line.startsWith("ChatClient ")) {
+               //ChatClient version [names]: a client that reconnects sends the version it has, "-" for
+               //none, and a client can send the names it wants presence news about
+               String[] parts = line.split(" ");
+               if (parts.length > 1 && ! parts[1].equals("-"))
+                  resumeFrom = parts[1];
+               if (parts.length > 2)
+                  requestedSubscription = parseNames(parts[2]);
+               line = parts[0];
+            }
+            if (! "ChatClient".equals(line)) //client also sends handshake to prove it identity
+               throw new Exception("Client did not properly identify itself.");
+            stage = NAME;
+            nextDeadline();
+            break;
+         case NAME:
+            if (line.equals(shutdownString)) {
+               channel.write(CHARSET.encode("shutting down\n"));
+               isShutDown = true;
+               listener.close();
+               return;
+            }
+            //make sure handle does not have unwanted symbol; interned, subscriptions to it share the String
+            name = line.replaceAll("~","-").replaceAll(" ","_").intern();
+            stage = PORT;
+            nextDeadline();
+            break;
+         case PORT:
+            //the port, and the path of the client's local socket if it has one
+            int separator = line.indexOf(' ');
+            String path = separator < 0 ? null : line.substring(separator + 1);
+            if (path != null && ! LocalSockets.isAdvertisable(path))
+               path = null;
+            int port;
             try {
-               socket.close();
+               port = Integer.parseInt(separator < 0 ? line : line.substring(0, separator));
             }
-            catch (Exception e) {
+            catch (NumberFormatException e) {
+               throw new Exception("Did not receive port number from client.");
+            }
+            if (port <= 0 || port > 65535)
+               throw new Exception("Illegal port number received from client.");
+            roster.add(this, advertisedAddress(channel), port, path);
+            send(roster.secret(this) + '\n');
+            stage = CONNECTED;
+            pendingHandshakes.decrementAndGet();
+            reactor.handshakeDone(this);
+            commandLimit = new TokenBucket(20, 5);
+            nextPing = nextPingTime();
+            clients.subscribe(this, requestedSubscription);
+            reactor.watchingAll(this, requestedSubscription == null);
+            clients.announceConnection(this);
+            String changes = resumeFrom == null ? null : clients.changesSince(resumeFrom, this);
+            if (changes != null)
+               send(changes); //only what changed since the client's last view
+            else
+               sendClientList(); //first send the list of clients
+            break;
+         default:
+            String command = line;
+            String argument = "";
+            int space = line.indexOf(' ');
+            if (space >= 0) {
+               command = line.substring(0, space);
+               argument = line.substring(space + 1);
+            }
+            long now = System.currentTimeMillis();
+            if (command.equals("pingresponse")) { //the answer to a ping from the reactor
+               if (commandLimit.tryTake(now))
+                  pingAnswered();
+               else
+                  reject(command, now);
+               return;
             }
-            synchronized(this) {
-               notify();
+            if (! command.equals("ping") && ! command.equals("refresh") && ! command.equals("subscribe"))
+               throw new Exception("Illegal data received from client");
+            if (command.equals("ping") && pingLimit == null)
+               pingLimit = new TokenBucket(5, 1);
+            else if (! command.equals("ping") && refreshLimit == null)
+               refreshLimit = new TokenBucket(3, 0.1);
+            TokenBucket limit = command.equals("ping") ? pingLimit : refreshLimit;
+            if (! commandLimit.has(now) || ! limit.has(now)) { //a refused command costs neither
+               reject(command, now); //refresh and subscribe both cost a list of clients
+               return;
             }
+            commandLimit.tryTake(now);
+            limit.tryTake(now);
+            if (command.equals("ping")) //ping is implemented if network check is needed
+               send("pingresponse\n");
+            else if (command.equals("subscribe")) //"subscribe a~b~c", only news about these names
+               subscribe(parseNames(argument));
+            else //if client sends refresh command, then send back the newest clients list
+               sendClientList();
          }
-      }      
-      
-      synchronized void close() { //close connection and remove this client from client list
+      }
+
+      //answer a command that is over its rate limit with "ratelimited\n" and the command
+      void reject(String command, long now) throws Exception {
+         if (rejectLimit == null)
+            rejectLimit = new TokenBucket(50, 1);
+         if (! rejectLimit.tryTake(now))
+            throw new Exception("Too many requests from client.");
+         send("ratelimited\n" + command + '\n');
+      }
+
+      //the next handshake line is due HANDSHAKE_STEP_TIMEOUT ms from now, but not after the whole handshake is
+      void nextDeadline() {
+         deadline = Math.min(System.currentTimeMillis() + HANDSHAKE_STEP_TIMEOUT, handshakeEnd);
+      }
+
+      //close the connection and remove this client from client list
+      void close() {
          if (!closed) {
             closed = true;
+            if (stage != CONNECTED)
+               pendingHandshakes.decrementAndGet();
+            key.cancel();
             try {
-               socket.close();
+               channel.close();
             }
             catch (Exception e) {
             }
-            notify();
+            if (capture != null)
+               capture.add(TraceCapture.CLOSE, clientNumber, null);
             clients.remove(this);
          }
-      }      
-      
-      synchronized void send(String message) { //send a message out
-         messageOut += message; //by changing the messageOut variable
-         notify(); //then wake up the thread. Java will handle the thread itself so that this does not
-         			//block any working job
-      }      
-      
-      synchronized void sendClientList() { //send out the list of clients to all clients connected
-         ArrayList<Client> c = clients.copy();
-         messageOut += "clients\n";
-         for (Client client : c)
-            if (client != this)
-               messageOut += client.info + '\n'; 
-         messageOut += "endclients\n";
-         notify();
-      }      
-      
-      
-      //this is the main client thread, which sets up connection, start the reader thread at the server sidd
-      // and write message to clients
-      class ClientThread extends Thread {
-         public void run() {
+      }
+
+      //when to ping next, at random around the interval so that the pings of a reactor don't bunch up
+      //a client that answers is pinged every minute, four times less often over a slow link
+      //one that left a ping unanswered only every ten minutes, to keep the connection checked
+      long nextPingTime() {
+         long interval = PROBE_INTERVAL;
+         if (rtt != null && slow())
+            interval = 4*PROBE_INTERVAL;
+         else if (rtt == null && pingSent != 0)
+            interval = 10*PROBE_INTERVAL;
+         return System.currentTimeMillis() + interval*(75+(int)(50*Math.random()))/100;
+      }
+
+      //the round trips of the client for the log, null when it never answered a ping
+      String rttSummary() {
+         if (rtt == null)
+            return null;
+         return "rtt p50 <" + rtt.percentile(0.5)/1000.0 + " ms, p99 <" + rtt.percentile(0.99)/1000.0 + " ms";
+      }
+
+   }
+
+   // An I/O reactor: one thread with a selector serving its share of the clients
+   private static class Reactor extends Thread {
+
+      Selector selector;
+      ByteBuffer readBuffer = ByteBuffer.allocate(2*MAX_LINE_LENGTH); //for all clients, one at a time
+      Set<Client> owned = new LinkedHashSet<Client>(); //clients served by this reactor
+      Set<Client> watchingAll = new LinkedHashSet<Client>(); //those of them that watch everybody
+      ArrayDeque<Client> held = new ArrayDeque<Client>(); //clients with news held back, by flushAt
+      ArrayList<Client> behind = new ArrayList<Client>(); //clients with too much output waiting, to drop
+      Set<Client> handshaking = new LinkedHashSet<Client>(); //clients of this reactor in their handshake
+      TimeHistogram handshakeTimes = new TimeHistogram(); //of the handshakes since the last stats
+      int handshakesDone, handshakesTimedOut, handshakesFailed; //since the last stats
+      volatile int watchingAllCount; //so that other reactors don't post to this one for nothing
+      ConcurrentLinkedQueue<Client> registrations = new ConcurrentLinkedQueue<Client>(); //from the accept loop
+      ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<Event>(); //from all reactors
+      AtomicBoolean wakeupPending = new AtomicBoolean(); //avoids waking the selector once per queued item
+      volatile boolean closed;
+
+      Reactor(int number) throws IOException {
+         super("Reactor-" + number);
+         selector = Selector.open();
+      }
+
+      void register(Client client) { //called by the accept loop
+         registrations.add(client);
+         if (closed)
+            closeRegistrations(); //it ended while the client was handed over
+         else
+            wakeup();
+      }
+
+      //close the connections handed over but not taken yet
+      void closeRegistrations() {
+         Client client;
+         while ((client = registrations.poll()) != null) {
+            pendingHandshakes.decrementAndGet();
             try {
-               String ip = convertAddress(socket.getInetAddress());
-               PrintWriter out;
-               BufferedReader in;
-               out = new PrintWriter(socket.getOutputStream());
-               in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-               out.println("ChatServer"); //print out handshake to be sure of the connection
-               out.flush();
-               if (out.checkError())
-                  throw new Exception("Error while trying to send handshake to client");
-               String handshake = in.readLine();
-               if (! "ChatClient".equals(handshake)) //client also sends handshake to prove it identity
-                  throw new Exception("Client did not properly identify itself.");
-               String handle = in.readLine();
-               if (handle.equals(shutdownString)) {
-                  out.println("shutting down");
-                  out.flush();
-                  isShutDown = true;
-                  listener.close();
-                  return;
+               client.channel.close();
+            }
+            catch (Exception e) {
+            }
+         }
+      }
+
+      void post(Event event) { //called by any reactor
+         events.add(event);
+         wakeup();
+      }
+
+      void shutDown() {
+         closed = true;
+         selector.wakeup();
+      }
+
+      void wakeup() {
+         if (wakeupPending.compareAndSet(false, true))
+            selector.wakeup();
+      }
+
+      public void run() {
+         long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL;
+         long nextCheck = System.currentTimeMillis() + HANDSHAKE_CHECK;
+         long nextStats = System.currentTimeMillis() + STATS_INTERVAL;
+         try {
+            while (!closed && !isShutDown) {
+               wakeupPending.set(false);
+               if (registrations.isEmpty() && events.isEmpty()) {
+                  long timeout = handshaking.isEmpty() ? SWEEP_INTERVAL : HANDSHAKE_CHECK;
+                  if (!held.isEmpty())
+                     timeout = Math.max(1, Math.min(timeout, held.peek().flushAt - System.currentTimeMillis()));
+                  selector.select(timeout);
                }
-               handle = handle.replaceAll("~","-"); //make sure handle does not have unwanted symbol
-               String portString = in.readLine();
-               int port;
-               try {
-                  port = Integer.parseInt(portString);
+               else
+                  selector.selectNow();
+               Client client;
+               while ((client = registrations.poll()) != null)
+                  accept(client);
+               Event event;
+               while ((event = events.poll()) != null) {
+                  if (event.target != null)
+                     event.target.announce(event);
+                  else
+                     for (Client c : watchingAll)
+                        c.announce(event);
                }
-               catch (NumberFormatException e) {
-                  throw new Exception("Did not receive port number from client.");
+               Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+               while (keys.hasNext()) {
+                  SelectionKey key = keys.next();
+                  keys.remove();
+                  serve((Client)key.attachment(), key);
                }
-               if (port <= 0 || port > 65535)
-                  throw new Exception("Illegal port number received from client.");
-               out.println(secret);
-               out.flush();
-               if (out.checkError())
-                  throw new Exception("Error while sending initial data to client.");
-               info = handle + "~" + ip + "~" + port + "~" + secret;
-               info = info.replaceAll(" ","_");
-               connected = true;
-               clients.announceConnection(Client.this);
-               readerThread = new ReaderThread(in);
-               readerThread.start();
-               sendClientList(); //first send the list of clients
-               while (!closed && !isShutDown) {
-                  String messageToSend;
-                  synchronized(Client.this) {
-                     messageToSend = messageOut;
-                     messageOut = "";
-                  }
-                  if (closed || isShutDown)
-                     break;
-                  if (messageToSend.length() == 0)
-                     messageToSend = "ping\n"; 
-                  out.print(messageToSend);
-                  out.flush();
-                  if (out.checkError())
-                     throw new Exception("Error while sending to client.");
-                  synchronized(Client.this) {
-                     if (!closed && !isShutDown && messageOut.length() == 0) {
-                        try { // sleep for about 10 minutes or until notified of a new message.
-                           Client.this.wait(10*(50+(int)(15*Math.random()))*1000);
-                        }
-                        catch (InterruptedException e) {
-                        }
+               for (Client c : behind) { //dropped here, not while the news goes round the clients
+                  if (!c.closed)
+                     log.add(EventLog.ERROR, c.clientNumber, "more than " + MAX_OUTPUT + " characters waiting");
+                  drop(c);
+               }
+               behind.clear();
+               long now = System.currentTimeMillis();
+               while (!held.isEmpty() && held.peek().flushAt <= now) { //write the news held back
+                  Client c = held.poll();
+                  c.flushAt = 0;
+                  if (!c.closed && c.key.isValid())
+                     c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+               }
+               if (now >= nextCheck) { //drop the connections that are too slow with their handshake
+                  Iterator<Client> pending = handshaking.iterator();
+                  while (pending.hasNext()) {
+                     Client c = pending.next();
+                     if (now >= c.deadline) {
+                        pending.remove();
+                        handshakesTimedOut++;
+                        log.add(EventLog.TIMEOUT, c.clientNumber, "handshake stage " + c.stage);
+                        drop(c);
                      }
                   }
+                  nextCheck = now + HANDSHAKE_CHECK;
+               }
+               if (now >= nextStats) {
+                  if (handshakesDone + handshakesTimedOut + handshakesFailed > 0)
+                     log.add(EventLog.HANDSHAKES, 0, handshakeStats());
+                  handshakesDone = handshakesTimedOut = handshakesFailed = 0;
+                  handshakeTimes.clear();
+                  nextStats = now + STATS_INTERVAL;
+               }
+               if (now >= nextSweep) { //ping the clients whose time has come
+                  for (Client c : owned)
+                     if (c.stage == Client.CONNECTED && now >= c.nextPing)
+                        c.ping();
+                  nextSweep = now + SWEEP_INTERVAL;
                }
             }
-            catch (Exception e) {
-               if (!closed && ! isShutDown)
-                  System.out.println("Client " + clientNumber + " error: " + e);
+         }
+         catch (Exception e) {
+            if (!closed && !isShutDown)
+               log.add(EventLog.ERROR, 0, getName() + " error: " + e);
+         }
+         finally { //the clients leave the list and the roster as if each had closed its connection
+            closed = true; //the accept loop hands no more connections to this reactor
+            for (Client c : new ArrayList<Client>(owned))
+               drop(c);
+            closeRegistrations();
+            try {
+               selector.close();
             }
-            finally {
-               close();
+            catch (Exception e) {
             }
          }
-      }      
-      
-      
-      //the reader thread to read from clients and make answer
-      class ReaderThread extends Thread {
-         BufferedReader in;
-         ReaderThread(BufferedReader in) {
-            this.in = in;
+      }
+
+      //take over a new connection and start the handshake
+      void accept(Client client) {
+         try {
+            client.channel.configureBlocking(false);
+            client.key = client.channel.register(selector, SelectionKey.OP_READ, client);
          }
-         public void run() {
+         catch (IOException e) {
+            log.add(EventLog.ERROR, client.clientNumber, e.toString());
+            pendingHandshakes.decrementAndGet();
             try {
-               while (true) {
-                  String messageIn = in.readLine();
-                  if (messageIn == null)
-                     break;  // connection closed from other side
-                  else if (messageIn.equals("ping")) //ping is implemented if network check is needed
-                     send("pingresponse\n");
-                  else if (messageIn.equals("refresh")) //if client sends refresh command,
-                	  									//then send back the newest clients list
-                     sendClientList();
-                  else
-                     throw new Exception("Illegal data received from client");
-               }
+               client.channel.close();
             }
-            catch (Exception e) {
-               if (!closed && !isShutDown)
-                  System.out.println("Client " + clientNumber + " error: " + e);
+            catch (Exception e2) {
             }
-            finally {
-               close();
+            return;
+         }
+         client.reactor = this;
+         client.handshakeStart = System.nanoTime();
+         client.handshakeEnd = System.currentTimeMillis() + HANDSHAKE_TIMEOUT;
+         client.nextDeadline();
+         owned.add(client);
+         handshaking.add(client);
+         try {
+            log.add(EventLog.CONNECT, client.clientNumber, convertAddress(remoteAddress(client.channel)));
+         }
+         catch (IOException e) {
+         }
+         if (capture != null)
+            capture.add(TraceCapture.OPEN, client.clientNumber, null);
+         client.send("ChatServer\n"); //print out handshake to be sure of the connection
+      }
+
+      //read and write for one client whose socket is ready
+      void serve(Client client, SelectionKey key) {
+         try {
+            if (key.isReadable() && !client.read()) {
+               drop(client);  // connection closed from other side
+               return;
             }
+            if (key.isValid() && key.isWritable())
+               client.flush();
          }
-      } 
-      
-   }   
+         catch (Exception e) {
+            if (!client.closed && !isShutDown)
+               log.add(EventLog.ERROR, client.clientNumber, e.toString());
+            drop(client);
+         }
+      }
+
+      //a client starts or stops watching everybody
+      void watchingAll(Client client, boolean all) {
+         if (all)
+            watchingAll.add(client);
+         else
+            watchingAll.remove(client);
+         watchingAllCount = watchingAll.size();
+      }
+
+      //a client is through its handshake
+      void handshakeDone(Client client) {
+         handshaking.remove(client);
+         handshakesDone++;
+         handshakeTimes.add((System.nanoTime() - client.handshakeStart) / 1000);
+      }
+
+      //how the handshakes since the last stats went, for the log
+      String handshakeStats() {
+         String stats = getName() + ": " + handshakesDone + " done, " + handshakesTimedOut + " timed out, "
+               + handshakesFailed + " failed";
+         if (handshakesDone > 0)
+            stats += ", p50 <" + handshakeTimes.percentile(0.5)/1000.0 + " ms, p99 <"
+                  + handshakeTimes.percentile(0.99)/1000.0 + " ms";
+         return stats;
+      }
+
+      void drop(Client client) {
+         if (handshaking.remove(client))
+            handshakesFailed++;
+         owned.remove(client);
+         watchingAll(client, false);
+         client.close();
+      }
+
+   }
 
 }
@@ -1,50 +1,152 @@
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
+import javax.swing.event.*;
+import javax.swing.text.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 
  * @author anhhct
  * ChatWindow.java: The window for the chat client. This window is open when user connect to another
  * client. it has text field to input message, field for displaying messages along with connection
- * states over times.
+ * states over times. Files can be sent to the buddy, they go over a separate socket with zero-copy
+ * transfers while the offer and the acknowledgments go over the chat connection. Messages are kept in
+ * the ChatHistory, and the search field finds them there and jumps to the ones in this window.
+ * When both sides run with -Dchat.datagrams=true, messages go as datagrams (see DatagramTransport), and
+ * are numbered so that the buddy shows each once, whether it came as a datagram or over TCP.
+ * Each side times the round trip to the buddy over the chat connection, the client list shows it.
+ * The conversations are tabs of one window. A conversation keeps its transcript as plain text, only
+ * the last MAX_TRANSCRIPT characters of it when the history keeps the rest, and has buttons and a text
+ * area only while its tab is shown and for VIEW_IDLE ms after; a conversation in a hidden tab costs
+ * little more than its transcript.
  *
  */
 
 
-public class ChatWindow extends JFrame {   
+public class ChatWindow {
    private enum ConnectionState { CONNECTING, CONNECTED, CLOSED }; //states of the connection  
-   private static Point previousWindowLocation; //use to make new windows at different location from previous ones
+   private static Host host; //the window with the conversations, made with the first one
    private ConnectionHandler connection;
-   private JButton closeButton, clearButton, sendButton;
+   private static final String CONTROL = "\u0001"; //starts the lines on the chat connection that are not messages
+   private static final int FILE_CHUNK = 256*1024; //bytes per transfer call, the receiver acknowledges each chunk
+   private static final int FILE_WINDOW = 4*FILE_CHUNK; //how far the sender may be ahead of the acknowledgments
+   private static final int FILE_TIMEOUT = 60000; //ms without progress before a file transfer fails
+   private static final int MAX_PENDING = 500; //messages waiting for a slow buddy before new ones are refused
+   private static final int MAX_MESSAGE = 1024*1024; //longest message accepted from the buddy, in characters
+   private static final int MESSAGE_PART = 8192; //longer messages are shown in parts of this size as they arrive
+   private static final int MAX_TRANSCRIPT = 32*1024; //characters of a transcript kept when the history has the rest
+   private static final int VIEW_IDLE = 60000; //ms a hidden conversation keeps its components
+   private static final int PROBE_INTERVAL = 10000; //ms between probes of the round trip to the buddy
+   private static Timer probeTimer = new Timer("ChatProbes", true); //sends the probes of all windows
+   //the last round trip (ms) to each buddy with an open connection, by name
+   private static ConcurrentHashMap<String,Long> roundTripTimes = new ConcurrentHashMap<String,Long>();
+   private ConcurrentHashMap<String,FileSender> outgoingFiles = new ConcurrentHashMap<String,FileSender>(); //by id
+   private ConcurrentHashMap<String,FileReceiver> incomingFiles = new ConcurrentHashMap<String,FileReceiver>();
+   //the transcript, kept while the conversation has no components: the characters from position dropped on
+   private StringBuilder text = new StringBuilder();
+   private long dropped; //characters removed from the start, by clear or because it got too long
+   private boolean syncPending; //the view is to catch up with the text
+   private String title;
+   private String draft = ""; //what was typed into components that were released
+   private String pendingText = ""; //the "pending" indicator
+   private long hiddenSince; //when the conversation's tab was left, 0 while it is shown
+   //the components, built when the tab is first shown, null while the conversation is hidden and idle
+   private JPanel view;
+   private long viewStart, viewEnd; //the part of the text the view shows
+   private JButton closeButton, clearButton, sendButton, fileButton;
    private JTextField messageInput; //input box to input chat message
    private JTextArea transcript; //messages display field
+   private JLabel pendingLabel; //shows how many messages wait to be sent when the buddy lags
+   private JTextField searchInput; //words or "a phrase" to find in the chat history
+   private JButton allHitsButton;
+   private JLabel searchStatus;
+   //where the messages of this window are in the text: history id -> start, end
+   private ConcurrentHashMap<Long,long[]> transcriptPositions = new ConcurrentHashMap<Long,long[]>();
+   private ArrayList<ChatHistory.Message> hits; //of the last search
+   private String lastQuery;
+   private int hitIndex; //hit of this window shown last
    private static ArrayList<ChatWindow> openWindows = new ArrayList<ChatWindow>();
    public static void closeAll() { //close all windows
       Object[] windows = openWindows.toArray();
       for (int i = 0; i < windows.length; i++)
-         ((JFrame)windows[i]).dispose();
+         ((ChatWindow)windows[i]).dispose();
    }
    public static int openWindowCount() {
       return openWindows.size();
    }
+   //the last round trip (ms) to a buddy, -1 when there is no connection to it or no answer yet
+   public static long roundTripTime(String name) {
+      Long millis = roundTripTimes.get(name);
+      return millis == null ? -1 : millis;
+   }
    //constructor, make a new window with socket connected to the buddy client
    public ChatWindow(Socket connectedSocket, String secret) {
-      super("Connection Request Received");
-      create();
+      create("Connection Request Received");
       connection = new ConnectionHandler(connectedSocket,secret);
    }
    public ChatWindow(String hostName, int port, 
-                                String myName, String partnerName, String secret) {
-      super("Chatting with " + partnerName);
-      create();
-      connection = new ConnectionHandler(hostName,port,myName,partnerName,secret);
+                                String myName, String partnerName, String secret, Path localPath) {
+      create("Chatting with " + partnerName);
+      connection = new ConnectionHandler(hostName,port,myName,partnerName,secret,localPath);
+   }
+   //a tab for the conversation, its components are built when it is shown
+   private void create(String title) {
+      this.title = title;
+      openWindows.add(this);
+      SwingUtilities.invokeLater(new Runnable() {
+         public void run() {
+            if (host == null)
+               host = new Host();
+            host.add(ChatWindow.this);
+         }
+      });
    }
-   private void create() {
+   //close the conversation and its tab
+   public void dispose() {
+      if (!openWindows.remove(this))
+         return;
+      if (connection != null &&
+            connection.getConnectionState() != ConnectionState.CLOSED) {
+         connection.close();
+      }
+      SwingUtilities.invokeLater(new Runnable() {
+         public void run() {
+            host.remove(ChatWindow.this);
+         }
+      });
+      if (openWindows.size() == 0 && !ChatClient.isRunning()) {
+         try {
+            Thread.sleep(1000);
+         }
+         catch (InterruptedException e) {
+         }
+         System.exit(0);
+      }
+   }
+   private void setTitle(final String title) {
+      this.title = title;
+      SwingUtilities.invokeLater(new Runnable() {
+         public void run() {
+            host.setTitle(ChatWindow.this, title);
+         }
+      });
+   }
+   //build the components of the conversation, when its tab is shown
+   private JPanel buildView() {
 	   //set up button and layout
       ActionListener actionHandler = new ActionHandler();
       closeButton = new JButton("Close");
@@ -53,14 +155,21 @@ public class ChatWindow extends JFrame {
       clearButton.addActionListener(actionHandler);
       sendButton = new JButton("Send");
       sendButton.addActionListener(actionHandler);
-      sendButton.setEnabled(false);
-      messageInput = new JTextField();
+      fileButton = new JButton("Send File...");
+      fileButton.addActionListener(actionHandler);
+      messageInput = new JTextField(draft);
       messageInput.addActionListener(actionHandler);
-      messageInput.setEditable(false);
+      pendingLabel = new JLabel(pendingText);
+      searchInput = new JTextField();
+      searchInput.addActionListener(actionHandler);
+      allHitsButton = new JButton("All Hits...");
+      allHitsButton.addActionListener(actionHandler);
+      searchStatus = new JLabel("");
       transcript = new JTextArea(20,60);
       transcript.setLineWrap(true);
       transcript.setWrapStyleWord(true);
       transcript.setEditable(false);
+      connectionChanged();
       
       JPanel content = new JPanel();
       content.setLayout(new BorderLayout(3,3));
@@ -72,56 +181,64 @@ public class ChatWindow extends JFrame {
       inputBar.setLayout(new BorderLayout(3,3));
       inputBar.setBackground(Color.GRAY);
       
+      JPanel searchBar = new JPanel();
+      searchBar.setLayout(new BorderLayout(3,3));
+      searchBar.setBackground(Color.GRAY);
+      JPanel top = new JPanel();
+      top.setLayout(new GridLayout(2,1,3,3));
+      top.setBackground(Color.GRAY);
+      top.add(buttonBar);
+      top.add(searchBar);
+      
       content.setBorder(BorderFactory.createLineBorder(Color.GRAY, 3));
-      content.add(buttonBar, BorderLayout.NORTH);
+      content.add(top, BorderLayout.NORTH);
       content.add(inputBar, BorderLayout.SOUTH);
       content.add(new JScrollPane(transcript), BorderLayout.CENTER);
       
+      buttonBar.add(fileButton);
       buttonBar.add(clearButton);
       buttonBar.add(closeButton);
       inputBar.add(new JLabel("Your Message:"), BorderLayout.WEST);
       inputBar.add(messageInput, BorderLayout.CENTER);
       inputBar.add(sendButton, BorderLayout.EAST);
+      inputBar.add(pendingLabel, BorderLayout.SOUTH);
+      JPanel searchButtons = new JPanel();
+      searchButtons.setLayout(new BorderLayout(3,3));
+      searchButtons.setBackground(Color.GRAY);
+      searchButtons.add(searchStatus, BorderLayout.CENTER);
+      searchButtons.add(allHitsButton, BorderLayout.EAST);
+      searchBar.add(new JLabel("Search History:"), BorderLayout.WEST);
+      searchBar.add(searchInput, BorderLayout.CENTER);
+      searchBar.add(searchButtons, BorderLayout.EAST);
       
-      setContentPane(content);
-      
-      pack();
-      //make new windows do not cover old ones
-      if (previousWindowLocation == null)
-         previousWindowLocation = new Point(40,80);
-      else {
-         Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
-         previousWindowLocation.x += 50;
-         if (previousWindowLocation.x + getWidth() > screenSize.width)
-            previousWindowLocation.x = 10;
-         previousWindowLocation.y += 30;
-         if (previousWindowLocation.y + getHeight() > screenSize.height)
-            previousWindowLocation.y = 50;
+      view = content;
+      synchronized(text) {
+         transcript.setText(text.toString());
+         viewStart = dropped;
+         viewEnd = dropped + text.length();
       }
-      setLocation(previousWindowLocation);
-      
-      setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-      
-      openWindows.add(this);
-
-      addWindowListener( new WindowAdapter() {
-         public void windowClosed(WindowEvent evt) {
-            if (connection != null && 
-                  connection.getConnectionState() != ConnectionState.CLOSED) {
-               connection.close();
-            }
-            openWindows.remove(this);
-            if (openWindows.size() == 0 && !ChatClient.isRunning()) {
-               try {
-                  Thread.sleep(1000);
-               }
-               catch (InterruptedException e) {
-               }
-               System.exit(0);
-            }
-         }
-      });      
-      setVisible(true);      
+      transcript.setCaretPosition(transcript.getDocument().getLength());
+      return view;
+   }
+   //drop the components of a conversation that was hidden for a while, the text and the draft stay
+   private void releaseView() {
+      draft = messageInput.getText();
+      view = null;
+      closeButton = clearButton = sendButton = fileButton = allHitsButton = null;
+      messageInput = searchInput = null;
+      transcript = null;
+      pendingLabel = searchStatus = null;
+      hits = null;
+      lastQuery = null;
+   }
+   //the buttons and the input follow the state of the connection
+   private void connectionChanged() {
+      if (sendButton == null)
+         return;
+      boolean connected = connection != null && connection.state == ConnectionState.CONNECTED;
+      sendButton.setEnabled(connected);
+      fileButton.setEnabled(connected);
+      messageInput.setEditable(connected);
    }   
    //actions for buttons
    private class ActionHandler implements ActionListener {
@@ -131,7 +248,26 @@ public class ChatWindow extends JFrame {
             dispose();
          }
          else if (source == clearButton) {
-            transcript.setText("");
+            synchronized(text) {
+               dropped += text.length();
+               text.setLength(0);
+            }
+            transcriptPositions.clear();
+            lastQuery = null;
+            syncView();
+         }
+         else if (source == searchInput) {
+            searchHistory();
+         }
+         else if (source == allHitsButton) {
+            showAllHits();
+         }
+         else if (source == fileButton) {
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showOpenDialog(host) == JFileChooser.APPROVE_OPTION
+                  && connection != null
+                  && connection.getConnectionState() == ConnectionState.CONNECTED)
+               new FileSender(chooser.getSelectedFile());
          }
          else if (source == sendButton || source == messageInput) {
             if (connection != null && 
@@ -144,10 +280,242 @@ public class ChatWindow extends JFrame {
       }
    }  
    
+   //search the history; pressing enter again goes to the next older hit in this window
+   private void searchHistory() {
+      String query = searchInput.getText().trim();
+      ChatHistory history = ChatHistory.get();
+      if (history == null) {
+         searchStatus.setText(ChatHistory.enabled() ? "history unavailable" : "history off (-Dchat.history=true)");
+         return;
+      }
+      if (query.length() == 0)
+         return;
+      if (!query.equals(lastQuery)) {
+         hits = history.search(query);
+         lastQuery = query;
+         hitIndex = -1;
+      }
+      ArrayList<Long> here = new ArrayList<Long>();
+      for (ChatHistory.Message hit : hits)
+         if (transcriptPositions.containsKey(hit.id))
+            here.add(hit.id);
+      if (here.size() == 0) {
+         searchStatus.setText(hits.size() + " in history, none here");
+         return;
+      }
+      hitIndex = (hitIndex + 1) % here.size();
+      showHit(here.get(hitIndex));
+      searchStatus.setText((hitIndex + 1) + " of " + here.size() + " here, " + hits.size() + " in history");
+   }
+   
+   //the hits in all conversations; the one selected is shown if it is in this window
+   private void showAllHits() {
+      searchHistory();
+      if (hits == null)
+         return;
+      JList<ChatHistory.Message> list = new JList<ChatHistory.Message>(hits.toArray(new ChatHistory.Message[0]));
+      JScrollPane scroller = new JScrollPane(list);
+      scroller.setPreferredSize(new Dimension(600, 300));
+      JOptionPane.showMessageDialog(host, scroller, "Search: " + lastQuery, JOptionPane.PLAIN_MESSAGE);
+      ChatHistory.Message selected = list.getSelectedValue();
+      if (selected != null && transcriptPositions.containsKey(selected.id))
+         showHit(selected.id);
+   }
+   
+   //highlight a message in the transcript and scroll to it
+   private void showHit(long id) {
+      syncView();
+      long[] position = transcriptPositions.get(id);
+      Highlighter highlighter = transcript.getHighlighter();
+      highlighter.removeAllHighlights();
+      if (position == null || position[0] < viewStart)
+         return; //the transcript was cleared, or the message was trimmed off its start
+      try {
+         highlighter.addHighlight((int)(position[0] - viewStart), (int)(position[1] - viewStart),
+                                      new DefaultHighlighter.DefaultHighlightPainter(Color.YELLOW));
+         transcript.setCaretPosition((int)(position[0] - viewStart));
+      }
+      catch (BadLocationException e) { //past the end of the view, it can't be
+      }
+   }
+   
+   //put a message in the history, and remember where it is in the transcript
+   private void postAndRecord(String partner, boolean sent, String message) {
+      String line = (sent ? "SEND:  " : "RECV:  ") + message;
+      long start;
+      synchronized(text) {
+         start = dropped + text.length();
+         postMessage(line);
+      }
+      record(partner, sent, message, start, start + line.length());
+   }
+   
+   //keep a message in the history, with where it is in the transcript
+   private void record(String partner, boolean sent, String message, long start, long end) {
+      ChatHistory history = ChatHistory.get();
+      if (history != null) {
+         long id = history.add(partner, sent, message);
+         if (start >= dropped) //a long message can push its own start out of the text
+            transcriptPositions.put(id, new long[] { start, end });
+      }
+   }
+   
    //get new messages to be displayed in the transcript field with scroll
    private void postMessage(String message) {
-      transcript.append(message + "\n");
+      append(message + "\n");
+   }
+
+   //add to the text; the oldest lines go when it gets too long and the history keeps them, and the view
+   //catches up on the event thread
+   private void append(String s) {
+      synchronized(text) {
+         text.append(s);
+         if (text.length() > MAX_TRANSCRIPT && ChatHistory.get() != null) {
+            int keep = MAX_TRANSCRIPT*3/4; //a quarter at a time
+            int cut = text.indexOf("\n", text.length() - keep) + 1;
+            if (cut == 0)
+               cut = text.length() - keep;
+            text.delete(0, cut);
+            dropped += cut;
+            Iterator<long[]> positions = transcriptPositions.values().iterator();
+            while (positions.hasNext())
+               if (positions.next()[0] < dropped)
+                  positions.remove();
+         }
+         if (syncPending)
+            return;
+         syncPending = true;
+      }
+      SwingUtilities.invokeLater(new Runnable() {
+         public void run() {
+            syncView();
+            if (host != null)
+               host.changed(ChatWindow.this);
+         }
+      });
+   }
+
+   //bring the view up to date with the text, called on the event thread
+   private void syncView() {
+      synchronized(text) {
+         syncPending = false;
+         if (transcript == null)
+            return;
+         if (viewEnd < dropped) //everything it shows is gone
+            transcript.setText(text.toString());
+         else {
+            if (dropped > viewStart)
+               transcript.replaceRange("", 0, (int)(dropped - viewStart));
+            transcript.append(text.substring((int)(viewEnd - dropped)));
+         }
+         viewStart = dropped;
+         viewEnd = dropped + text.length();
+      }
       transcript.setCaretPosition(transcript.getDocument().getLength());
+   }
+
+   // The window of the conversations, a tab each. Only the tabs that were shown lately have components,
+   //the others get theirs again when they are shown, so many open conversations cost little.
+   private static class Host extends JFrame implements ChangeListener {
+
+      private static final long serialVersionUID = 1L;
+
+      JTabbedPane tabs = new JTabbedPane();
+      ArrayList<ChatWindow> conversations = new ArrayList<ChatWindow>(); //in the order of the tabs
+      ChatWindow shown; //the conversation of the selected tab
+
+      Host() {
+         super("ChatClient Conversations");
+         tabs.setPreferredSize(new Dimension(700, 500));
+         tabs.addChangeListener(this);
+         setContentPane(tabs);
+         pack();
+         setLocation(40,80);
+         setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+         addWindowListener( new WindowAdapter() {
+            public void windowClosing(WindowEvent evt) {
+               closeAll();
+            }
+         });
+         new javax.swing.Timer(VIEW_IDLE/2, new ActionListener() {
+            public void actionPerformed(ActionEvent evt) {
+               releaseIdle();
+            }
+         }).start();
+      }
+
+      void add(ChatWindow conversation) {
+         if (!openWindows.contains(conversation))
+            return; //closed already
+         conversations.add(conversation);
+         tabs.addTab(conversation.title, null);
+         tabs.setSelectedIndex(conversations.size() - 1); //builds its components
+         setVisible(true);
+         toFront();
+      }
+
+      void remove(ChatWindow conversation) {
+         int index = conversations.indexOf(conversation);
+         if (index < 0)
+            return;
+         conversations.remove(index);
+         tabs.removeTabAt(index);
+         if (conversation.view != null)
+            conversation.releaseView();
+         if (conversations.isEmpty())
+            setVisible(false);
+      }
+
+      void setTitle(ChatWindow conversation, String title) {
+         int index = conversations.indexOf(conversation);
+         if (index >= 0)
+            tabs.setTitleAt(index, title);
+      }
+
+      //something was added to a conversation, its tab is marked until it is shown
+      void changed(ChatWindow conversation) {
+         int index = conversations.indexOf(conversation);
+         if (index >= 0 && conversation != shown)
+            tabs.setForegroundAt(index, Color.RED);
+      }
+
+      //bring a conversation to the front, when it needs the user
+      void show(ChatWindow conversation) {
+         int index = conversations.indexOf(conversation);
+         if (index >= 0)
+            tabs.setSelectedIndex(index);
+         toFront();
+      }
+
+      //another tab was selected: it gets its components if it has none
+      public void stateChanged(ChangeEvent evt) {
+         if (shown != null)
+            shown.hiddenSince = System.currentTimeMillis();
+         int index = tabs.getSelectedIndex();
+         shown = index < 0 ? null : conversations.get(index);
+         if (shown == null)
+            return;
+         shown.hiddenSince = 0;
+         tabs.setForegroundAt(index, null);
+         if (shown.view == null)
+            tabs.setComponentAt(index, shown.buildView());
+         else
+            shown.syncView();
+      }
+
+      //release the components of the conversations that were not shown for VIEW_IDLE ms
+      void releaseIdle() {
+         long now = System.currentTimeMillis();
+         for (int i = 0; i < conversations.size(); i++) {
+            ChatWindow conversation = conversations.get(i);
+            if (conversation != shown && conversation.view != null
+                  && now - conversation.hiddenSince > VIEW_IDLE) {
+               tabs.setComponentAt(i, null);
+               conversation.releaseView();
+            }
+         }
+      }
+
    } 
    
    //thread managing the connection
@@ -156,11 +524,21 @@ public class ChatWindow extends JFrame {
       private volatile ConnectionState state;
       private String remoteHost; //ip of the connected buddy
       private int port; //working port
+      private Path localPath; //the buddy's local socket, used when the buddy is on this machine
       private Socket socket;
       private PrintWriter out; //for communicate
-      private BufferedReader in;
+      private LineReader in;
+      private StringBuilder longMessage = new StringBuilder(); //the parts of a long message received so far
+      private long longMessageStart; //where the long message starts in the transcript
       private String secret; //secret provided by server
       private String myName;      
+      private String partner; //the buddy's name, for the history
+      private InetAddress remoteAddress; //where the buddy is, file data connections go there
+      private ArrayDeque<String> outQueue = new ArrayDeque<String>(); //lines waiting for the writer thread
+      private volatile boolean writing; //the writer thread is in a write
+      private DatagramTransport.Session datagrams; //messages go as datagrams once the buddy joined it, or null
+      private boolean datagramsFailed;
+      private TimerTask probe; //sends PING now and then while the connection is open
       
       
       //constructors
@@ -173,14 +551,17 @@ public class ChatWindow extends JFrame {
          start();
       }      
       
-      ConnectionHandler(String remoteHost, int port, String myName, String partner, String secret) {
+      ConnectionHandler(String remoteHost, int port, String myName, String partner, String secret,
+                        Path localPath) {
          postMessage("CONNECTING TO " + partner +
                " (at " + remoteHost + ", port " + port + ")...");
          state = ConnectionState.CONNECTING;
          this.remoteHost = remoteHost;
          this.port = port;
+         this.localPath = localPath;
          this.secret = secret;
          this.myName = myName;
+         this.partner = partner;
          start();
       }      
       
@@ -189,21 +570,76 @@ public class ChatWindow extends JFrame {
       }      
       
       
-      //send message to buddy
+      //send message to buddy, the writer thread does the actual sending so this never blocks
       synchronized void send(String message) {
          if (state == ConnectionState.CONNECTED) {
-            postMessage("SEND:  " + message);
-            out.println(message);
-            out.flush();
-            if (out.checkError()) {
-               postMessage("\nERROR OCCURRED WHILE TRYING TO SEND DATA.");
-               close();
+            if (datagrams != null && datagrams.isConnected()) {
+               //numbered, the buddy waits for every number, so the queue must take it if it goes over TCP
+               if (pending() >= MAX_PENDING) {
+                  postMessage("NOT SENT, BUDDY IS NOT KEEPING UP:  " + message);
+                  return;
+               }
+               long seq = datagrams.next();
+               boolean sent = false;
+               try {
+                  sent = datagrams.send(seq, message);
+               }
+               catch (IOException e) { //TCP takes it
+               }
+               if (! sent)
+                  queue(CONTROL + "RESEND " + seq + " " + message, true);
             }
+            else if (! queue(message, false)) {
+               postMessage("NOT SENT, BUDDY IS NOT KEEPING UP:  " + message);
+               return;
+            }
+            postAndRecord(partner, true, message);
          }
       }      
       
+      //send a line that is not a message, for file transfers
+      synchronized void sendControl(String line) {
+         if (state == ConnectionState.CONNECTED)
+            queue(CONTROL + line, true);
+      }      
+      
+      private int pending() {
+         synchronized(outQueue) {
+            return outQueue.size();
+         }
+      }
+
+      //put a line in the outbound queue, false if the queue is full
+      //control lines are always taken, there are only a few of them per file transfer
+      private boolean queue(String line, boolean control) {
+         int pending;
+         synchronized(outQueue) {
+            if (!control && outQueue.size() >= MAX_PENDING)
+               return false;
+            outQueue.add(line);
+            pending = outQueue.size();
+            outQueue.notify();
+         }
+         if (pending > 1 || writing)
+            showPending(pending);
+         return true;
+      }
+      
+      //the "pending" indicator, empty when nothing waits
+      private void showPending(final int pending) {
+         SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+               pendingText = pending == 0 ? "" : pending + " message(s) pending, buddy is lagging...";
+               if (pendingLabel != null)
+                  pendingLabel.setText(pendingText);
+            }
+         });
+      }
+      
       //close connection
       synchronized void close() {
+         if (state == ConnectionState.CONNECTING)
+            interrupt(); //cancels the connection attempt
          state = ConnectionState.CLOSED;
          try {
             if (socket != null && !socket.isClosed())
@@ -215,20 +651,182 @@ public class ChatWindow extends JFrame {
       
       //print out the received message
       synchronized private void received(String message) {
-         if (state == ConnectionState.CONNECTED)
-            postMessage("RECV:  " + message);
+         if (state != ConnectionState.CONNECTED)
+            return;
+         if (message.startsWith(CONTROL)) {
+            String line = message.substring(CONTROL.length());
+            if (line.startsWith("DGRAM") || line.startsWith("RESEND "))
+               datagramControl(line);
+            else if (line.startsWith("PING ") || line.startsWith("PONG "))
+               probeControl(line);
+            else
+               fileControl(line);
+         }
+         else
+            postAndRecord(partner, false, message);
       }      
       
+      //a datagram transport line from the buddy:
+      //   DGRAM port id key, its datagram session and half of the session key;
+      //   DGRAMSTART, its messages are numbered from now on;
+      //   RESEND seq message, a numbered message that came over TCP, too long or its datagrams were lost
+      private void datagramControl(String line) {
+         try {
+            if (line.startsWith("DGRAM ")) {
+               String[] parts = line.split(" ");
+               if (datagrams != null && parts.length == 4) {
+                  datagrams.connect(remoteAddress, Integer.parseInt(parts[1]), parts[2], parts[3]);
+                  sendControl("DGRAMSTART"); //before any numbered message
+               }
+            }
+            else if (line.equals("DGRAMSTART")) {
+               if (datagrams != null)
+                  show(datagrams.start());
+            }
+            else if (line.startsWith("RESEND ")) {
+               String[] parts = line.split(" ", 3);
+               if (parts.length < 3)
+                  return;
+               if (datagrams == null || !datagrams.isConnected()) //it never numbered its messages
+                  postAndRecord(partner, false, parts[2]);
+               else
+                  show(datagrams.arrived(Long.parseLong(parts[1]), parts[2]));
+            }
+         }
+         catch (NumberFormatException e) {
+            postMessage("\nILLEGAL DATAGRAM DATA RECEIVED: " + e);
+         }
+         catch (IOException e) {
+            postMessage("\nDATAGRAMS NOT POSSIBLE: " + e);
+            datagrams.close();
+            datagrams = null;
+         }
+      }
+
+      //the buddy's numbered messages that are next in order
+      private void show(ArrayList<String> messages) {
+         for (String message : messages)
+            postAndRecord(partner, false, message);
+      }
+      
+      //a round trip probe: PING time, which the buddy sends back as PONG time
+      //the time is our System.nanoTime(), so the clocks of the two machines don't matter
+      private void probeControl(String line) {
+         String time = line.substring(5);
+         if (line.startsWith("PING ")) {
+            sendControl("PONG " + time);
+            return;
+         }
+         try {
+            long millis = (System.nanoTime() - Long.parseLong(time)) / 1000000;
+            if (millis < 0 || millis > 10*PROBE_INTERVAL || partner == null)
+               return; //not one of ours
+            roundTripTimes.put(partner, millis);
+            setTitle("Chatting with " + partner + " (" + millis + " ms)");
+         }
+         catch (NumberFormatException e) {
+            postMessage("\nILLEGAL PROBE DATA RECEIVED: " + e);
+         }
+      }
+      
+      // messages from the buddy's datagrams, and ours that have to go over TCP after all
+      private class DatagramListener implements DatagramTransport.Listener {
+         public void datagramReceived(long seq, String message) {
+            synchronized(ConnectionHandler.this) {
+               if (state == ConnectionState.CONNECTED && datagrams != null)
+                  show(datagrams.arrived(seq, message));
+            }
+         }
+         public void datagramLost(long seq, String message) {
+            synchronized(ConnectionHandler.this) {
+               if (! datagramsFailed)
+                  postMessage("DATAGRAMS TO BUDDY ARE LOST, GOING BACK TO TCP.");
+               datagramsFailed = true;
+               sendControl("RESEND " + seq + " " + message);
+            }
+         }
+      }
+      
+      //a part of a message too long to wait for, shown as it arrives and recorded when it is complete
+      synchronized private void receivedPart(String part, boolean last) throws IOException {
+         if (state != ConnectionState.CONNECTED)
+            return;
+         if (longMessage.length() == 0) {
+            if (part.startsWith(CONTROL)) //control lines are short
+               throw new IOException("File transfer data from buddy is too long.");
+            synchronized(text) {
+               longMessageStart = dropped + text.length();
+               append("RECV:  ");
+            }
+         }
+         longMessage.append(part);
+         append(last ? part + "\n" : part);
+         if (last) {
+            record(partner, false, longMessage.toString(), longMessageStart,
+                   longMessageStart + "RECV:  ".length() + longMessage.length());
+            longMessage.setLength(0);
+         }
+      }
+      
+      //a file transfer line from the buddy:
+      //   FILEOFFER id size name, FILEACCEPT id port offset token, FILEREJECT id, FILEACK id offset
+      private void fileControl(String line) {
+         String[] parts = line.split(" ", 4);
+         try {
+            if (parts[0].equals("FILEOFFER") && parts.length == 4) {
+               final String id = parts[1];
+               final long size = Long.parseLong(parts[2]);
+               final String name = new File(parts[3]).getName(); //no directories from the other side
+               SwingUtilities.invokeLater(new Runnable() { //don't stop reading while the user decides
+                  public void run() {
+                     fileOffered(id, size, name);
+                  }
+               });
+               return;
+            }
+            FileSender sender = parts.length > 1 ? outgoingFiles.get(parts[1]) : null;
+            if (sender == null)
+               return; //a transfer that has ended already
+            if (parts[0].equals("FILEACCEPT") && parts.length == 4) {
+               String[] rest = parts[3].split(" ");
+               sender.accepted(Integer.parseInt(parts[2]), Long.parseLong(rest[0]), rest[1]);
+            }
+            else if (parts[0].equals("FILEREJECT"))
+               sender.rejected();
+            else if (parts[0].equals("FILEACK") && parts.length == 3)
+               sender.acknowledged(Long.parseLong(parts[2]));
+         }
+         catch (Exception e) {
+            postMessage("\nILLEGAL FILE TRANSFER DATA RECEIVED: " + e);
+         }
+      }
+      
       
       //post connection states
       
       synchronized private void connectionOpened() throws IOException {
          postMessage("CONNECTION ESTABLISHED.\n");
          state = ConnectionState.CONNECTED;
-         sendButton.setEnabled(true);
-         messageInput.setEditable(true);
-         messageInput.setText("");
-         messageInput.requestFocus();
+         new WriterThread(out).start();
+         remoteAddress = socket.getInetAddress();
+         DatagramTransport transport = DatagramTransport.get();
+         if (transport != null) { //offer the buddy a datagram session, it is used once the buddy offers one too
+            datagrams = transport.newSession(secret, new DatagramListener());
+            sendControl("DGRAM " + transport.getPort() + " " + datagrams.getId() + " " + datagrams.getKeyHalf());
+         }
+         probe = new TimerTask() { //a buddy that doesn't know PING ignores it like an unknown file line
+            public void run() {
+               sendControl("PING " + System.nanoTime());
+            }
+         };
+         probeTimer.schedule(probe, 0, PROBE_INTERVAL);
+         SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+               connectionChanged();
+               if (messageInput != null)
+                  messageInput.requestFocus();
+            }
+         });
       }      
       
       synchronized private void connectionClosedFromOtherSide() {
@@ -242,8 +840,11 @@ public class ChatWindow extends JFrame {
       //close sockets as cleanup jobs
       synchronized private void cleanup() {
          state = ConnectionState.CLOSED;
-         sendButton.setEnabled(false);
-         messageInput.setEditable(false);
+         SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+               connectionChanged();
+            }
+         });
          postMessage("\n*** CONNECTION CLOSED ***");
          if (socket != null && !socket.isClosed()) {
             try {
@@ -255,6 +856,66 @@ public class ChatWindow extends JFrame {
          socket = null;
          in = null;
          out = null;
+         if (datagrams != null)
+            datagrams.close();
+         if (probe != null)
+            probe.cancel();
+         if (partner != null)
+            roundTripTimes.remove(partner);
+         synchronized(outQueue) {
+            outQueue.clear();
+            outQueue.notify(); //lets the writer thread end
+         }
+         for (FileSender sender : outgoingFiles.values())
+            sender.cancel();
+         for (FileReceiver receiver : incomingFiles.values())
+            receiver.cancel();
+         showPending(0);
+      }
+      
+      //takes everything that is queued and sends it with one write, so a slow buddy or a
+      //full socket buffer holds up only this thread and never the GUI
+      private class WriterThread extends Thread {
+         private PrintWriter out;
+         WriterThread(PrintWriter out) {
+            this.out = out;
+         }
+         public void run() {
+            StringBuilder batch = new StringBuilder();
+            String newline = System.getProperty("line.separator"); //as println would write it
+            while (state == ConnectionState.CONNECTED) {
+               synchronized(outQueue) {
+                  while (outQueue.isEmpty() && state == ConnectionState.CONNECTED) {
+                     try {
+                        outQueue.wait();
+                     }
+                     catch (InterruptedException e) {
+                     }
+                  }
+                  String line;
+                  while ((line = outQueue.poll()) != null)
+                     batch.append(line).append(newline);
+               }
+               if (batch.length() == 0)
+                  continue;
+               writing = true;
+               out.print(batch);
+               out.flush();
+               writing = false;
+               batch.setLength(0);
+               if (out.checkError()) {
+                  if (state == ConnectionState.CONNECTED)
+                     postMessage("\nERROR OCCURRED WHILE TRYING TO SEND DATA.");
+                  close();
+                  return;
+               }
+               int pending;
+               synchronized(outQueue) {
+                  pending = outQueue.size();
+               }
+               showPending(pending);
+            }
+         }
       }
       
       
@@ -264,38 +925,48 @@ public class ChatWindow extends JFrame {
                InetAddress addr = socket.getInetAddress();
                int port = socket.getPort();
                postMessage("   (from IP address " + addr + ", port " + port +")");
-               in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+               in = new LineReader(socket.getInputStream(), ChatClient.MAX_LINE_LENGTH);
                out = new PrintWriter(socket.getOutputStream());
+               socket.setSoTimeout(ChatClient.HANDSHAKE_TIMEOUT); //a buddy that sends nothing is dropped
                String secret = in.readLine();
                //check whether the buddy has the correct secret provided by server
                //this ensure security, only clients connected via server can make connection
                if (secret == null || !secret.equals(this.secret))
                   throw new Exception("Connection request does not come from a validated user!");
-               String partner = in.readLine();
+               partner = in.readLine();
                if (partner == null)
                   throw new Exception("Connection unexpectedly closed from other side.");
+               socket.setSoTimeout(0);
+               in.setMaxLength(MAX_MESSAGE); //messages from the buddy can be long
                postMessage("Connection opened to " + partner);
                setTitle("Chatting with " + partner);
             }
             else if (state == ConnectionState.CONNECTING) {
                   // The user has requested a request to a remote user.  Open a connection
                   // to the user and send handshake info.
-               socket = new Socket(remoteHost,port);
-               in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+               socket = ChatClient.connect(remoteHost,port,localPath); //with a deadline, and cancelled by close()
+               in = new LineReader(socket.getInputStream(), MAX_MESSAGE);
                out = new PrintWriter(socket.getOutputStream());
                out.println(secret);
                out.println(myName);
                out.flush();
             }
             connectionOpened();  // Set up to use the connection.
+            StringBuilder part = new StringBuilder();
+            boolean inLongMessage = false;
             while (state == ConnectionState.CONNECTED) {
-                  // Read one line of text from the other side of
-                  // the connection, and report it to the user.
-               String input = in.readLine();
-               if (input == null)
+                  // Read one line of text from the other side of the connection, or a
+                  // part of it if it is long, and report it to the user.
+               part.setLength(0);
+               int result = in.read(part, MESSAGE_PART);
+               if (result == LineReader.END)
                   connectionClosedFromOtherSide();
-               else
-                  received(input);  // Report message to user.
+               else if (result == LineReader.LINE && !inLongMessage)
+                  received(part.toString());  // Report message to user.
+               else {
+                  inLongMessage = result == LineReader.PART;
+                  receivedPart(part.toString(), !inLongMessage);
+               }
             }
          }
          catch (Exception e) {
@@ -308,4 +979,255 @@ public class ChatWindow extends JFrame {
       }
       
    }
+
+   //the buddy offers a file: ask the user, where to save it, and whether to resume a partial copy
+   private void fileOffered(String id, long size, String name) {
+      if (connection == null || connection.getConnectionState() != ConnectionState.CONNECTED)
+         return;
+      host.show(this);
+      int answer = JOptionPane.showConfirmDialog(host,
+            "Your buddy wants to send you " + name + " (" + size + " bytes).\nAccept?",
+            "File offered", JOptionPane.YES_NO_OPTION);
+      JFileChooser chooser = new JFileChooser();
+      chooser.setSelectedFile(new File(name));
+      if (answer != JOptionPane.YES_OPTION
+            || chooser.showSaveDialog(host) != JFileChooser.APPROVE_OPTION) {
+         connection.sendControl("FILEREJECT " + id);
+         return;
+      }
+      File file = chooser.getSelectedFile();
+      long offset = 0;
+      if (file.exists() && file.length() < size) {
+         answer = JOptionPane.showConfirmDialog(host,
+               "The file already has " + file.length() + " bytes.\nResume the transfer from there?",
+               "Resume", JOptionPane.YES_NO_OPTION);
+         if (answer == JOptionPane.YES_OPTION)
+            offset = file.length();
+      }
+      try {
+         new FileReceiver(id, size, file, offset);
+      }
+      catch (IOException e) {
+         postMessage("\nCAN'T RECEIVE FILE: " + e);
+         connection.sendControl("FILEREJECT " + id);
+      }
+   }
+   
+   //post the progress of a transfer at every 10 percent
+   private long reportProgress(String what, File file, long done, long size, long lastReported) {
+      long step = Math.max(size/10, 1);
+      if (done == size || done/step > lastReported/step) {
+         postMessage(what + " " + file.getName() + ": " + (size == 0 ? 100 : 100*done/size) + "%");
+         return done;
+      }
+      return lastReported;
+   }
+   
+   //sends a file: offers it, then writes it to the data connection that the buddy opened for it,
+   //at most FILE_WINDOW bytes ahead of what the buddy acknowledged so chat lines are not starved
+   private class FileSender extends Thread {
+      
+      private String id;
+      private File file;
+      private long size;
+      private int port; //where the buddy waits for the data
+      private long offset; //where to start, more than 0 when the buddy resumes
+      private String token; //proves the data connection belongs to this transfer
+      private long acknowledged;
+      private long lastProgress; //time of the last acknowledgment
+      private boolean rejected;
+      private volatile SocketChannel out; //the data connection, null until it is opened
+      
+      FileSender(File file) {
+         this.file = file;
+         size = file.length();
+         id = Long.toHexString(new SecureRandom().nextLong());
+         outgoingFiles.put(id, this);
+         postMessage("OFFERING FILE " + file.getName() + " (" + size + " bytes)...");
+         connection.sendControl("FILEOFFER " + id + " " + size + " " + file.getName());
+      }
+      
+      synchronized void accepted(int port, long offset, String token) {
+         if (offset < 0 || offset > size)
+            throw new IllegalArgumentException("Bad offset " + offset);
+         this.port = port;
+         this.offset = offset;
+         this.token = token;
+         acknowledged = offset;
+         lastProgress = System.currentTimeMillis();
+         start();
+      }
+      
+      synchronized void rejected() {
+         rejected = true;
+         outgoingFiles.remove(id);
+         postMessage("FILE " + file.getName() + " WAS NOT ACCEPTED.");
+         notify();
+      }
+      
+      synchronized void acknowledged(long offset) {
+         if (offset > acknowledged) {
+            acknowledged = offset;
+            lastProgress = System.currentTimeMillis();
+         }
+         notify();
+      }
+      
+      //the chat connection closed, the acknowledgments can't come any more
+      void cancel() {
+         outgoingFiles.remove(id);
+         try {
+            SocketChannel data = out;
+            if (data != null)
+               data.close(); //stops a write to a buddy that doesn't read
+         }
+         catch (IOException e) {
+         }
+      }
+      
+      //wait until the acknowledgments reach the given offset
+      synchronized void awaitAcknowledged(long offset) throws Exception {
+         while (acknowledged < offset && !rejected) {
+            if (System.currentTimeMillis() - lastProgress > FILE_TIMEOUT
+                  || connection.state != ConnectionState.CONNECTED) //not getConnectionState(), it locks
+               throw new Exception("No acknowledgment from buddy.");
+            wait(1000);
+         }
+      }
+      
+      public void run() {
+         FileChannel in = null;
+         try {
+            if (offset > 0)
+               postMessage("RESUMING " + file.getName() + " FROM BYTE " + offset);
+            in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            out = SocketChannel.open(new InetSocketAddress(connection.remoteAddress, port));
+            out.write(ByteBuffer.wrap((token + "\n").getBytes("US-ASCII")));
+            long position = offset;
+            long reported = offset;
+            while (position < size && !rejected) {
+               awaitAcknowledged(position + FILE_CHUNK - FILE_WINDOW);
+               position += in.transferTo(position, Math.min(FILE_CHUNK, size - position), out);
+               reported = reportProgress("SENDING", file, acknowledged, size, reported);
+            }
+            awaitAcknowledged(size);
+            if (!rejected)
+               postMessage("FILE SENT: " + file.getName());
+         }
+         catch (Exception e) {
+            postMessage("\nFILE TRANSFER FAILED: " + e + "\nSend the file again to resume it.");
+         }
+         finally {
+            outgoingFiles.remove(id);
+            try {
+               if (in != null)
+                  in.close();
+               if (out != null)
+                  out.close();
+            }
+            catch (IOException e) {
+            }
+         }
+      }
+      
+   }
+   
+   //receives a file: waits for the buddy's data connection on a port of its own and moves the data
+   //from the socket into the file, acknowledging every chunk
+   private class FileReceiver extends Thread {
+      
+      private String id;
+      private long size;
+      private File file;
+      private long offset;
+      private String token;
+      private ServerSocketChannel listener;
+      private volatile Socket data; //the buddy's data connection, null until it came
+      private volatile boolean stopped;
+      
+      FileReceiver(String id, long size, File file, long offset) throws IOException {
+         this.id = id;
+         this.size = size;
+         this.file = file;
+         this.offset = offset;
+         token = Long.toHexString(new SecureRandom().nextLong());
+         listener = ServerSocketChannel.open();
+         listener.bind(new InetSocketAddress(0));
+         listener.socket().setSoTimeout(FILE_TIMEOUT);
+         postMessage("RECEIVING FILE " + file.getName() + " (" + size + " bytes)...");
+         incomingFiles.put(id, this);
+         start();
+         connection.sendControl("FILEACCEPT " + id + " " + listener.socket().getLocalPort() + " " +
+                                    offset + " " + token);
+      }
+      
+      //the chat connection closed, stop waiting for the data
+      void cancel() {
+         stopped = true;
+         incomingFiles.remove(id);
+         try {
+            listener.close();
+            Socket socket = data;
+            if (socket != null)
+               socket.close();
+         }
+         catch (IOException e) {
+         }
+      }
+      
+      public void run() {
+         FileChannel out = null;
+         try {
+            data = listener.socket().accept();
+            listener.close();
+            if (stopped)
+               throw new IOException("Connection to buddy closed.");
+            //reads through the socket, a blocking channel would wait for ever for a buddy that stops sending
+            data.setSoTimeout(FILE_TIMEOUT);
+            InputStream in = data.getInputStream();
+            String received = "";
+            while (received.length() <= token.length()) { //the token line, one byte at a time
+               int b = in.read();
+               if (b < 0)
+                  throw new EOFException("Data connection closed by buddy.");
+               if (b == '\n')
+                  break;
+               received += (char)b;
+            }
+            if (!received.equals(token))
+               throw new Exception("Data connection does not belong to this transfer!");
+            out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            out.truncate(offset);
+            ReadableByteChannel source = Channels.newChannel(in);
+            long position = offset;
+            long reported = offset;
+            while (position < size) {
+               long n = out.transferFrom(source, position, Math.min(FILE_CHUNK, size - position));
+               if (n == 0)
+                  throw new EOFException("Data connection closed by buddy.");
+               position += n;
+               connection.sendControl("FILEACK " + id + " " + position);
+               reported = reportProgress("RECEIVING", file, position, size, reported);
+            }
+            postMessage("FILE RECEIVED: " + file);
+         }
+         catch (Exception e) {
+            postMessage("\nFILE TRANSFER FAILED: " + e +
+                  "\nThe received part is kept, the transfer can be resumed.");
+         }
+         finally {
+            incomingFiles.remove(id);
+            try {
+               listener.close();
+               if (data != null)
+                  data.close();
+               if (out != null)
+                  out.close();
+            }
+            catch (IOException e) {
+            }
+         }
+      }
+      
+   }
 }
@@ -0,0 +1,463 @@
+import java.io.*;
+import java.net.*;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ *
+ * DatagramTransport.java: Sends chat lines between buddies as UDP datagrams, on the same port number as
+ * the TCP port the client gives to the server, so that short bursts don't wait behind a lost TCP
+ * segment. A chat window agrees on a session with the buddy over its TCP connection, each side sends
+ * its session id and half of the session key there. Every datagram has the session ids, a sequence
+ * number and a MAC made with the key of that pair of sessions, which never goes through the server.
+ * Datagrams that are not acknowledged are sent again, and when one is lost too many times the session
+ * fails and the window goes back to TCP. Once a session is connected every message is numbered, also
+ * the ones that go over TCP because they are too long or the session failed. The buddy shows each one
+ * as it comes and drops the ones it has seen by their number, so a lost datagram doesn't hold up the
+ * ones after it, which can show out of order; they only wait for DGRAMSTART, the line that ends the
+ * messages sent over TCP before numbering began, so none of them overtakes those.
+ * On localhost datagrams are not faster than TCP (a median of about 80 against 20 microseconds in the
+ * benchmark below), they only help on lossy links where TCP would hold back the segments after a lost
+ * one; so they are off unless both sides run with -Dchat.datagrams=true.
+ * Run as java DatagramTransport [messages [loss%]] to compare the latency with TCP on localhost.
+ *
+ */
+
+
+public class DatagramTransport extends Thread {
+
+   public static final int MAX_MESSAGE = 1200; //bytes of text in one datagram, longer messages go over TCP
+   private static final int RETRANSMIT_TIMEOUT = 100; //ms before a datagram is sent again, doubled each time
+   private static final int MAX_TRIES = 5; //sends of a datagram before the session fails
+   private static final int TICK = 20; //ms between looks for datagrams to send again
+   private static final String CHARSET = "UTF-8";
+
+   private static DatagramTransport transport; //the client's transport, null when datagrams are off
+
+   private DatagramSocket socket;
+   private ConcurrentHashMap<String,Session> sessions = new ConcurrentHashMap<String,Session>(); //by local id
+   private SecureRandom random = new SecureRandom();
+   private double loss; //fraction of datagrams dropped on purpose, for the benchmark
+   private volatile boolean closed;
+
+   // what a session reports, on the transport's thread
+   public interface Listener {
+      void datagramReceived(long seq, String message); //to be put in order with arrived()
+      void datagramLost(long seq, String message); //after the session failed, for every unacknowledged one
+   }
+
+   //open the client's transport on the given port, if datagrams are enabled and the port is free
+   public static synchronized DatagramTransport open(int port) {
+      if (transport == null && Boolean.getBoolean("chat.datagrams")) {
+         try {
+            transport = new DatagramTransport(port);
+         }
+         catch (IOException e) { //the UDP port is taken, chats stay on TCP
+         }
+      }
+      return transport;
+   }
+
+   public static synchronized DatagramTransport get() {
+      return transport;
+   }
+
+   private DatagramTransport(int port) throws IOException {
+      super("DatagramTransport");
+      socket = new DatagramSocket(port);
+      socket.setSoTimeout(TICK);
+      setDaemon(true);
+      start();
+   }
+
+   public int getPort() {
+      return socket.getLocalPort();
+   }
+
+   //a new session, the buddy learns its id, key half and the port over the TCP connection
+   //secret is the one the connecting side presented, both sides have it
+   public Session newSession(String secret, Listener listener) {
+      Session session = new Session(secret, listener);
+      sessions.put(session.id, session);
+      return session;
+   }
+
+   public void close() {
+      closed = true;
+      socket.close();
+   }
+
+   // one chat window's datagrams
+   public class Session {
+
+      final String id;
+      final String keyHalf; //only sent to the buddy over TCP, never in a datagram
+      private String secret;
+      private Listener listener;
+      private volatile Mac mac; //null until connected; guarded by itself, a Mac is not thread safe
+      private InetSocketAddress remote; //null until the buddy told where it listens
+      private String remoteId;
+      private boolean failed;
+      private long nextSeq = 1;
+      private TreeMap<Long,Pending> unacknowledged = new TreeMap<Long,Pending>();
+      private boolean started; //the buddy numbers its messages from now on, DGRAMSTART came
+      private long received; //every message up to this number was shown
+      private TreeSet<Long> shownAhead = new TreeSet<Long>(); //shown ones above it, to drop them again
+      private TreeMap<Long,String> held = new TreeMap<Long,String>(); //came before DGRAMSTART, waiting
+
+      private Session(String secret, Listener listener) {
+         id = hex(8);
+         keyHalf = hex(16);
+         this.secret = secret;
+         this.listener = listener;
+      }
+
+      public String getId() {
+         return id;
+      }
+
+      public String getKeyHalf() {
+         return keyHalf;
+      }
+
+      //the buddy's session, from its control line; the key is made from both halves and the secret
+      public synchronized void connect(InetAddress address, int port, String remoteId, String remoteKeyHalf)
+            throws IOException {
+         try {
+            Mac derive = Mac.getInstance("HmacSHA256");
+            derive.init(new SecretKeySpec(secret.getBytes(CHARSET), "HmacSHA256"));
+            boolean first = keyHalf.compareTo(remoteKeyHalf) < 0; //the same order on both sides
+            derive.update((first ? keyHalf : remoteKeyHalf).getBytes(CHARSET));
+            derive.update((first ? remoteKeyHalf : keyHalf).getBytes(CHARSET));
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(derive.doFinal(), "HmacSHA256"));
+            this.mac = mac;
+         }
+         catch (java.security.GeneralSecurityException e) {
+            throw new IOException("Can't authenticate datagrams: " + e);
+         }
+         remote = new InetSocketAddress(address, port);
+         this.remoteId = remoteId;
+      }
+
+      public synchronized boolean isConnected() {
+         return remote != null;
+      }
+
+      //the number of the next message, whichever way it goes
+      public synchronized long next() {
+         return nextSeq++;
+      }
+
+      //send a numbered message as a datagram, false when it has to go over TCP
+      public boolean send(long seq, String message) throws IOException {
+         byte[] text = message.getBytes(CHARSET);
+         DatagramPacket packet;
+         synchronized(this) {
+            if (remote == null || failed || closed || text.length > MAX_MESSAGE)
+               return false;
+            packet = packet("M", remoteId, id, seq, text, remote);
+            Pending pending = new Pending();
+            pending.message = message;
+            pending.packet = packet;
+            pending.timeout = RETRANSMIT_TIMEOUT;
+            pending.due = System.currentTimeMillis() + pending.timeout;
+            unacknowledged.put(seq, pending);
+         }
+         transmit(packet);
+         return true;
+      }
+
+      //a numbered message from the buddy, as a datagram or over TCP; returns the ones that can be
+      //shown now: the message itself as soon as it comes, none when it is a duplicate or DGRAMSTART
+      //has not come yet, since the buddy's TCP messages from before it must be shown first
+      public synchronized ArrayList<String> arrived(long seq, String message) {
+         ArrayList<String> ready = new ArrayList<String>();
+         if (!started) {
+            if (seq > received && !held.containsKey(seq))
+               held.put(seq, message);
+         }
+         else if (shown(seq))
+            ready.add(message);
+         return ready;
+      }
+
+      //the buddy's numbered messages begin, the ones it sent before came over TCP and were shown
+      public synchronized ArrayList<String> start() {
+         started = true;
+         ArrayList<String> ready = new ArrayList<String>();
+         for (Map.Entry<Long,String> entry : held.entrySet())
+            if (shown(entry.getKey()))
+               ready.add(entry.getValue());
+         held.clear();
+         return ready;
+      }
+
+      //marks a message as shown, false when it was already
+      private boolean shown(long seq) {
+         if (seq <= received || !shownAhead.add(seq))
+            return false;
+         while (shownAhead.size() > 0 && shownAhead.first() == received + 1)
+            received = shownAhead.pollFirst();
+         return true;
+      }
+
+      public void close() {
+         sessions.remove(id);
+      }
+
+      //send again what is due, returns the messages to give back to TCP when the session fails
+      private ArrayList<Map.Entry<Long,Pending>> retransmit(long now) throws IOException {
+         ArrayList<DatagramPacket> again = new ArrayList<DatagramPacket>();
+         ArrayList<Map.Entry<Long,Pending>> lost = null;
+         synchronized(this) {
+            for (Pending pending : unacknowledged.values()) {
+               if (pending.due > now)
+                  continue;
+               if (++pending.tries >= MAX_TRIES) {
+                  failed = true;
+                  lost = new ArrayList<Map.Entry<Long,Pending>>(unacknowledged.entrySet());
+                  unacknowledged.clear();
+                  break;
+               }
+               pending.timeout *= 2;
+               pending.due = now + pending.timeout;
+               again.add(pending.packet);
+            }
+         }
+         if (lost == null)
+            for (DatagramPacket packet : again)
+               transmit(packet);
+         return lost;
+      }
+
+      private synchronized void acknowledged(long seq) {
+         unacknowledged.remove(seq);
+      }
+
+      //type to from seq mac, a newline and the message; the MAC covers everything else
+      private DatagramPacket packet(String type, String to, String from, long seq, byte[] text,
+                                    SocketAddress address) throws IOException {
+         byte[] header = (type + " " + to + " " + from + " " + seq).getBytes(CHARSET);
+         String tag = tag(header, text);
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream(header.length + text.length + 20);
+         bytes.write(header);
+         bytes.write((" " + tag + "\n").getBytes(CHARSET));
+         bytes.write(text);
+         byte[] data = bytes.toByteArray();
+         return new DatagramPacket(data, data.length, address);
+      }
+
+      private String tag(byte[] header, byte[] text) {
+         byte[] result;
+         synchronized(mac) {
+            mac.update(header);
+            mac.update((byte)'\n');
+            mac.update(text);
+            result = mac.doFinal();
+         }
+         StringBuilder hex = new StringBuilder();
+         for (int i = 0; i < 8; i++) //64 bits are plenty for chat lines
+            hex.append(Character.forDigit((result[i] >> 4) & 0xF, 16)).append(Character.forDigit(result[i] & 0xF, 16));
+         return hex.toString();
+      }
+
+   }
+
+   // a datagram waiting for its acknowledgment
+   private static class Pending {
+      String message;
+      DatagramPacket packet;
+      int tries; //sends after the first one
+      int timeout;
+      long due;
+   }
+
+   private String hex(int length) {
+      byte[] bytes = new byte[length];
+      random.nextBytes(bytes);
+      StringBuilder hex = new StringBuilder();
+      for (byte b : bytes)
+         hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      return hex.toString();
+   }
+
+   private void transmit(DatagramPacket packet) throws IOException {
+      if (loss > 0 && Math.random() < loss)
+         return;
+      socket.send(packet);
+   }
+
+   //receive datagrams, acknowledge and hand over the messages, and send again what was not acknowledged
+   public void run() {
+      byte[] buffer = new byte[MAX_MESSAGE + 256];
+      long nextRetransmit = System.currentTimeMillis() + TICK;
+      while (!closed) {
+         try {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+               socket.receive(packet);
+               received(packet);
+            }
+            catch (SocketTimeoutException e) {
+            }
+            long now = System.currentTimeMillis();
+            if (now >= nextRetransmit) {
+               for (Session session : sessions.values()) {
+                  ArrayList<Map.Entry<Long,Pending>> lost = session.retransmit(now);
+                  if (lost != null)
+                     for (Map.Entry<Long,Pending> entry : lost)
+                        session.listener.datagramLost(entry.getKey(), entry.getValue().message);
+               }
+               nextRetransmit = now + TICK;
+            }
+         }
+         catch (IOException e) {
+            if (closed)
+               return;
+         }
+      }
+   }
+
+   private void received(DatagramPacket packet) throws IOException {
+      byte[] data = packet.getData();
+      int end = packet.getOffset() + packet.getLength();
+      int newline = packet.getOffset();
+      while (newline < end && data[newline] != '\n')
+         newline++;
+      if (newline == end)
+         return;
+      String[] header = new String(data, packet.getOffset(), newline - packet.getOffset(), CHARSET).split(" ");
+      if (header.length != 5)
+         return;
+      Session session = sessions.get(header[1]);
+      if (session == null || session.mac == null)
+         return; //a window that was closed or has no key yet, or garbage
+      long seq;
+      try {
+         seq = Long.parseLong(header[3]);
+      }
+      catch (NumberFormatException e) {
+         return;
+      }
+      byte[] text = Arrays.copyOfRange(data, newline + 1, end);
+      String signed = header[0] + " " + header[1] + " " + header[2] + " " + header[3];
+      if (!session.tag(signed.getBytes(CHARSET), text).equals(header[4]))
+         return; //not from the buddy of this session
+      if (header[0].equals("A"))
+         session.acknowledged(seq);
+      else if (header[0].equals("M")) {
+         transmit(session.packet("A", header[2], header[1], seq, new byte[0], packet.getSocketAddress()));
+         session.listener.datagramReceived(seq, new String(text, CHARSET));
+      }
+   }
+
+
+   //latency of chat lines on localhost, over datagrams and over TCP: one side sends a line, the other
+   //sends it back, and the time until it is back is measured
+   public static void main(String[] args) throws Exception {
+      int messages = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+      double loss = args.length > 1 ? Double.parseDouble(args[1]) / 100 : 0;
+      final String message = "A short chat line, like most of them are.";
+
+      DatagramTransport a = new DatagramTransport(0), b = new DatagramTransport(0);
+      a.loss = loss;
+      b.loss = loss;
+      final Object lock = new Object();
+      final int[] back = new int[1];
+      final Session[] sessions = new Session[2];
+      sessions[0] = a.newSession("benchmark", new Listener() {
+         public void datagramReceived(long seq, String m) {
+            synchronized(lock) {
+               back[0]++;
+               lock.notify();
+            }
+         }
+         public void datagramLost(long seq, String m) {
+            System.out.println("Session failed, would fall back to TCP.");
+            System.exit(1);
+         }
+      });
+      sessions[1] = b.newSession("benchmark", new Listener() {
+         public void datagramReceived(long seq, String m) {
+            try {
+               for (String ready : sessions[1].arrived(seq, m))
+                  sessions[1].send(sessions[1].next(), ready);
+            }
+            catch (IOException e) {
+            }
+         }
+         public void datagramLost(long seq, String m) {
+         }
+      });
+      InetAddress localhost = InetAddress.getLoopbackAddress();
+      sessions[0].connect(localhost, b.getPort(), sessions[1].getId(), sessions[1].getKeyHalf());
+      sessions[1].connect(localhost, a.getPort(), sessions[0].getId(), sessions[0].getKeyHalf());
+      sessions[1].start();
+      long[] datagramTimes = new long[messages];
+      for (int i = 0; i < messages; i++) {
+         long start = System.nanoTime();
+         synchronized(lock) {
+            sessions[0].send(sessions[0].next(), message);
+            while (back[0] <= i)
+               lock.wait();
+         }
+         datagramTimes[i] = (System.nanoTime() - start) / 1000;
+      }
+      a.close();
+      b.close();
+
+      final ServerSocket server = new ServerSocket(0, 1, localhost);
+      Thread echo = new Thread() {
+         public void run() {
+            try {
+               Socket socket = server.accept();
+               socket.setTcpNoDelay(true);
+               LineReader in = new LineReader(socket.getInputStream(), ChatClient.MAX_LINE_LENGTH);
+               PrintWriter out = new PrintWriter(socket.getOutputStream());
+               String line;
+               while ((line = in.readLine()) != null) {
+                  out.println(line);
+                  out.flush();
+               }
+               socket.close();
+            }
+            catch (IOException e) {
+            }
+         }
+      };
+      echo.start();
+      Socket socket = new Socket(localhost, server.getLocalPort());
+      socket.setTcpNoDelay(true);
+      LineReader in = new LineReader(socket.getInputStream(), ChatClient.MAX_LINE_LENGTH);
+      PrintWriter out = new PrintWriter(socket.getOutputStream());
+      long[] tcpTimes = new long[messages];
+      for (int i = 0; i < messages; i++) {
+         long start = System.nanoTime();
+         out.println(message);
+         out.flush();
+         in.readLine();
+         tcpTimes[i] = (System.nanoTime() - start) / 1000;
+      }
+      socket.close();
+      server.close();
+
+      System.out.println(messages + " round trips, " + (loss*100) + "% datagrams dropped, microseconds:");
+      print("datagram", datagramTimes);
+      print("tcp", tcpTimes);
+   }
+
+   private static void print(String what, long[] times) {
+      Arrays.sort(times);
+      System.out.println(what + " p50 " + times[times.length*50/100] + " p90 " + times[times.length*90/100]
+            + " p99 " + times[times.length*99/100] + " max " + times[times.length - 1]);
+   }
+
+}
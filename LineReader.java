@@ -0,0 +1,108 @@
+import java.io.*;
+
+/**
+ *
+ * LineReader.java: Reads lines of text from a connection with a limit on their length, so a peer that
+ * never sends a newline can't make the reader run out of memory. The characters go through one buffer
+ * that is used again for every line, and a long line can be taken in parts as it arrives instead of
+ * as one String. A line longer than the limit is an IOException; the connection should be closed then,
+ * the rest of that line is not skipped.
+ *
+ */
+
+
+public class LineReader {
+
+   public static final int END = -1, PART = 0, LINE = 1; //results of read: end of stream, more to come, line ended
+   private static final int BUFFER_SIZE = 8192;
+
+   private Reader in;
+   private int maxLength; //longest line accepted, without the newline
+   private char[] buffer = new char[BUFFER_SIZE];
+   private int position, limit; //the characters in the buffer not handed out yet
+   private int length; //characters of the current line handed out so far
+   private boolean carriageReturn; //a '\r' ended what was read, it is held until the next character shows
+                                   //whether it is part of the line or of a "\r\n"
+   private StringBuilder line = new StringBuilder(); //for readLine
+
+   //reads the stream in the default charset, like the InputStreamReaders it replaces
+   public LineReader(InputStream in, int maxLength) {
+      this.in = new InputStreamReader(in);
+      this.maxLength = maxLength;
+   }
+
+   //a connection can take longer lines once the other side is known
+   public void setMaxLength(int maxLength) {
+      this.maxLength = maxLength;
+   }
+
+   //the next line without the newline, or null at the end of the stream
+   public String readLine() throws IOException {
+      line.setLength(0);
+      if (read(line, Integer.MAX_VALUE) == END)
+         return null;
+      return line.toString();
+   }
+
+   //append at most max characters of the current line to part
+   //returns LINE when the line ended with them, PART when more of it follows, END at the end of the stream
+   public int read(StringBuilder part, int max) throws IOException {
+      int taken = 0;
+      while (taken < max) {
+         if (position == limit) {
+            int n = in.read(buffer, 0, buffer.length);
+            if (n < 0) {
+               if (carriageReturn) { //the last line ends with it, without a newline
+                  carriageReturn = false;
+                  part.append('\r');
+                  length = 0;
+                  return LINE;
+               }
+               if (length == 0 && taken == 0)
+                  return END;
+               length = 0; //the last line had no newline
+               return LINE;
+            }
+            position = 0;
+            limit = n;
+         }
+         if (carriageReturn) {
+            carriageReturn = false;
+            if (buffer[position] != '\n') { //not a "\r\n", the '\r' is the line's own
+               part.append('\r');
+               taken++;
+               if (++length > maxLength)
+                  throw new IOException("Line longer than " + maxLength + " characters.");
+               continue;
+            }
+         }
+         int stop = (int)Math.min(limit, (long)position + max - taken);
+         int end = position;
+         while (end < stop && buffer[end] != '\n')
+            end++;
+         int copy = end;
+         if (end > position && buffer[end - 1] == '\r') {
+            copy--;
+            if (end == stop) //the newline can still come
+               carriageReturn = true;
+         }
+         part.append(buffer, position, copy - position);
+         taken += end - position;
+         length += copy - position;
+         if (length > maxLength)
+            throw new IOException("Line longer than " + maxLength + " characters.");
+         if (end < stop) {
+            position = end + 1;
+            length = 0;
+            return LINE;
+         }
+         position = end;
+      }
+      return PART;
+   }
+
+   public void close() throws IOException {
+      in.close();
+   }
+
+}
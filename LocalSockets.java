@@ -0,0 +1,267 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+
+/**
+ *
+ * LocalSockets.java: Unix domain socket endpoints for a server and clients on the same machine, which
+ * skip the TCP/IP stack of loopback connections. The server listens on a path made from its port, so a
+ * client finds it without asking; a client gives the path of its own listener to the server with its
+ * port, and it goes into the info other clients get. A connection over a path is wrapped in a
+ * java.net.Socket, so the code that reads and writes chat connections doesn't have to know.
+ * The paths are in a directory of the user's own that nobody else can get into, and only a socket
+ * owned by the user is connected to, so another user can't take a path first and pose as the server
+ * or a buddy; that user's clients reach them over TCP.
+ *
+ */
+
+
+public class LocalSockets {
+
+   // a live socket is at the path already
+   public static class InUseException extends IOException {
+      private static final long serialVersionUID = 1L;
+      InUseException(Path path) {
+         super(path + " is in use");
+      }
+   }
+
+   //the directory of this user's sockets
+   public static Path directory() {
+      return Paths.get(System.getProperty("java.io.tmpdir"), "chat-" + System.getProperty("user.name"));
+   }
+
+   //where the server listening on the given TCP port also listens
+   public static Path serverPath(int port) {
+      return directory().resolve("chatserver-" + port + ".sock");
+   }
+
+   //where a client whose chat listener has the given TCP port also listens
+   public static Path clientPath(int port) {
+      return directory().resolve("chatclient-" + port + ".sock");
+   }
+
+   //listen on a path in the directory; a file left there by a process that ended is replaced, a live
+   //one is not
+   public static ServerSocketChannel listen(Path path) throws IOException {
+      makeDirectory();
+      if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+         try {
+            SocketChannel.open(UnixDomainSocketAddress.of(path)).close();
+            throw new InUseException(path);
+         }
+         catch (SocketException e) { //nobody there
+            Files.deleteIfExists(path);
+         }
+      }
+      ServerSocketChannel listener = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+      listener.bind(UnixDomainSocketAddress.of(path));
+      path.toFile().deleteOnExit();
+      return listener;
+   }
+
+   //the next connection on a path listener, as a Socket
+   public static Socket accept(ServerSocketChannel listener) throws IOException {
+      return new LocalSocket(listener.accept());
+   }
+
+   //connect over a path, when the host is this machine and a socket of this user listens there;
+   //null otherwise
+   public static Socket connect(String host, Path path) {
+      if (path == null || ! Files.exists(path, LinkOption.NOFOLLOW_LINKS) || ! isLocal(host))
+         return null;
+      try {
+         if (! isOwn(path) || ! isOwn(path.getParent()))
+            return null; //another user's, it may pose as the one we want
+         return new LocalSocket(SocketChannel.open(UnixDomainSocketAddress.of(path)));
+      }
+      catch (IOException e) { //left behind by a process that ended, TCP it is
+         return null;
+      }
+   }
+
+   //make the directory, or check that the one there belongs to this user and nobody else can use it
+   private static void makeDirectory() throws IOException {
+      Path dir = directory();
+      boolean posix = dir.getFileSystem().supportedFileAttributeViews().contains("posix");
+      try {
+         if (posix)
+            Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+         else
+            Files.createDirectory(dir);
+      }
+      catch (FileAlreadyExistsException e) {
+      }
+      if (Files.isSymbolicLink(dir) || ! isOwn(dir) || (posix && ! Files.getPosixFilePermissions(dir,
+            LinkOption.NOFOLLOW_LINKS).equals(PosixFilePermissions.fromString("rwx------"))))
+         throw new IOException(dir + " is not private to this user");
+   }
+
+   //whether a file belongs to the user running this
+   private static boolean isOwn(Path path) throws IOException {
+      UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService()
+            .lookupPrincipalByName(System.getProperty("user.name"));
+      return Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).equals(user);
+   }
+
+   //whether a host name or address is this machine
+   public static boolean isLocal(String host) {
+      try {
+         for (InetAddress address : InetAddress.getAllByName(host))
+            if (address.isLoopbackAddress() || address.isAnyLocalAddress()
+                  || NetworkInterface.getByInetAddress(address) != null)
+               return true;
+      }
+      catch (IOException e) {
+      }
+      return false;
+   }
+
+   //whether a path can go into the client info, where "~" separates the fields
+   public static boolean isAdvertisable(String path) {
+      return path.length() > 0 && path.indexOf('~') < 0 && path.indexOf(' ') < 0 && path.indexOf('\n') < 0;
+   }
+
+   // a Socket over a Unix domain socket channel; it is reported as connected to the loopback address
+   private static class LocalSocket extends Socket {
+      LocalSocket(SocketChannel channel) throws IOException {
+         super(new ChannelImpl(channel));
+         connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)); //the channel is connected already
+      }
+   }
+
+   // the socket implementation: a non-blocking channel, with a selector for each direction so that a
+   //read can time out like on a TCP socket, and a close from another thread ends a blocked read or write
+   private static class ChannelImpl extends SocketImpl {
+
+      private SocketChannel channel;
+      private Selector readSelector, writeSelector;
+      private volatile int timeout; //SO_TIMEOUT for reads, 0 for none
+
+      ChannelImpl(SocketChannel channel) throws IOException {
+         this.channel = channel;
+         channel.configureBlocking(false);
+         readSelector = Selector.open();
+         writeSelector = Selector.open();
+         channel.register(readSelector, SelectionKey.OP_READ);
+         channel.register(writeSelector, SelectionKey.OP_WRITE);
+      }
+
+      //wait until the channel may be ready in the selector's direction, or at most timeout ms (0 for no limit)
+      private void await(Selector selector, int timeout) throws IOException {
+         try {
+            selector.select(timeout);
+            selector.selectedKeys().clear();
+            if (Thread.interrupted())
+               throw new InterruptedIOException();
+         }
+         catch (ClosedSelectorException e) {
+            throw new SocketException("Socket closed");
+         }
+      }
+
+      protected InputStream getInputStream() {
+         return new InputStream() {
+            public int read() throws IOException {
+               byte[] b = new byte[1];
+               return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+            public int read(byte[] b, int off, int len) throws IOException {
+               if (len == 0)
+                  return 0;
+               ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+               int timeout = ChannelImpl.this.timeout;
+               long deadline = System.currentTimeMillis() + timeout;
+               while (true) {
+                  int n = channel.read(buffer);
+                  if (n != 0)
+                     return n;
+                  if (timeout == 0)
+                     await(readSelector, 0);
+                  else {
+                     long wait = deadline - System.currentTimeMillis();
+                     if (wait <= 0)
+                        throw new SocketTimeoutException("Read timed out");
+                     await(readSelector, (int)wait);
+                  }
+               }
+            }
+         };
+      }
+
+      protected OutputStream getOutputStream() {
+         return new OutputStream() {
+            public void write(int b) throws IOException {
+               write(new byte[] { (byte)b }, 0, 1);
+            }
+            public void write(byte[] b, int off, int len) throws IOException {
+               ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+               while (buffer.hasRemaining())
+                  if (channel.write(buffer) == 0)
+                     await(writeSelector, 0);
+            }
+         };
+      }
+
+      protected void close() throws IOException {
+         channel.close();
+         readSelector.close();
+         writeSelector.close();
+      }
+
+      protected void connect(SocketAddress address, int timeout) {
+         this.address = ((InetSocketAddress)address).getAddress();
+         this.port = ((InetSocketAddress)address).getPort();
+      }
+
+      public void setOption(int option, Object value) {
+         if (option == SO_TIMEOUT)
+            timeout = (Integer)value;
+      }
+
+      public Object getOption(int option) {
+         return option == SO_TIMEOUT ? Integer.valueOf(timeout) : null;
+      }
+
+      protected void create(boolean stream) {
+      }
+
+      protected int available() {
+         return 0;
+      }
+
+      protected void connect(String host, int port) throws IOException {
+         throw new SocketException("Not supported");
+      }
+
+      protected void connect(InetAddress address, int port) throws IOException {
+         throw new SocketException("Not supported");
+      }
+
+      protected void bind(InetAddress host, int port) throws IOException {
+         throw new SocketException("Not supported");
+      }
+
+      protected void listen(int backlog) throws IOException {
+         throw new SocketException("Not supported");
+      }
+
+      protected void accept(SocketImpl s) throws IOException {
+         throw new SocketException("Not supported");
+      }
+
+      protected void sendUrgentData(int data) throws IOException {
+         throw new SocketException("Not supported");
+      }
+
+   }
+
+}
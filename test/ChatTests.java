@@ -0,0 +1,222 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ *
+ * ChatTests.java: Checks of the parts that work without a network or a screen. From the directory of
+ * the sources: javac -d out *.java test/*.java && java -cp out ChatTests
+ * Every check is printed, the exit status is 1 when one of them failed.
+ *
+ */
+
+
+public class ChatTests {
+
+   private static int failed;
+
+   public static void main(String[] args) throws Exception {
+      lineReader();
+      postings();
+      history();
+      changesSince();
+      tokenBucket();
+      eventLog();
+      System.out.println(failed == 0 ? "All passed." : failed + " failed.");
+      System.exit(failed == 0 ? 0 : 1);
+   }
+
+   static void check(String what, boolean ok) {
+      System.out.println((ok ? "ok      " : "FAILED  ") + what);
+      if (!ok)
+         failed++;
+   }
+
+   //a stream that gives one byte per read, so every line is split over reads
+   static InputStream trickle(String text) throws IOException {
+      final byte[] data = text.getBytes("UTF-8");
+      return new InputStream() {
+         int position;
+         public int read() {
+            return position < data.length ? data[position++] & 0xFF : -1;
+         }
+         public int read(byte[] b, int off, int len) {
+            if (position == data.length)
+               return -1;
+            b[off] = data[position++];
+            return 1;
+         }
+      };
+   }
+
+   static void postings() {
+      long[] ids = { 0, 1, 127, 128, 16383, 16384, 1L << 35, (1L << 62) + 5 };
+      int[][] positions = { { 0 }, { 1, 127, 128 }, {}, { 5, 16384, 2097152, Integer.MAX_VALUE }, { 3 }, { 0, 1 },
+            { 1000000 }, { 7 } };
+      ChatHistory.Postings written = new ChatHistory.Postings();
+      for (int i = 0; i < ids.length; i++)
+         written.add(ids[i], positions[i], positions[i].length);
+      ChatHistory.PostingsReader reader = new ChatHistory.PostingsReader(written.data, written.length);
+      boolean same = true;
+      for (int i = 0; i < ids.length; i++) {
+         if (!reader.next() || reader.id != ids[i] || reader.count != positions[i].length) {
+            same = false;
+            break;
+         }
+         for (int k = 0; k < reader.count; k++)
+            same &= reader.positions[k] == positions[i][k];
+      }
+      check("Postings: numbers of 1 to 9 bytes read back", same && !reader.next());
+   }
+
+   //messages through a segment file and the memory index, in a history under a temporary home
+   static void history() throws Exception {
+      File home = Files.createTempDirectory("chattests").toFile();
+      String oldHome = System.getProperty("user.home");
+      System.setProperty("user.home", home.getPath());
+      check("ChatHistory: off unless asked for", ChatHistory.get() == null);
+      System.setProperty("chat.history", "true");
+      ChatHistory history = ChatHistory.get();
+      System.setProperty("user.home", oldHome);
+      int count = 1500; //a segment file and some in memory
+      char[] longWord = new char[70000];
+      Arrays.fill(longWord, 'w');
+      history.add("bob", false, "a long word " + new String(longWord) + " to leave out");
+      count++;
+      for (int i = 1; i < count; i++)
+         history.add("bob", i % 2 == 0, "message number n" + i + (i % 3 == 0 ? " quick brown fox" : " brown quick"));
+      long deadline = System.currentTimeMillis() + 10000;
+      while (history.search("n" + (count - 1)).isEmpty() && System.currentTimeMillis() < deadline)
+         Thread.sleep(50);
+      File[] segments = new File(home, ".chatclient" + File.separator + "history").listFiles(new FilenameFilter() {
+         public boolean accept(File dir, String name) {
+            return name.startsWith("seg-") && name.endsWith(".idx");
+         }
+      });
+      check("ChatHistory: a segment file is written", segments != null && segments.length == 1);
+      check("ChatHistory: a word from the segment file", history.search("n7").size() == 1
+            && history.search("n7").get(0).text.startsWith("message number n7 "));
+      check("ChatHistory: a word from memory", history.search("n1500").size() == 1);
+      check("ChatHistory: a word that is not there", history.search("n1501").isEmpty());
+      check("ChatHistory: a word too long to index", history.search(new String(longWord)).isEmpty()
+            && history.search("\"long word to\"").size() == 1);
+      check("ChatHistory: a phrase", history.search("\"quick brown\"").size() == 200); //the newest MAX_HITS
+      check("ChatHistory: words of a phrase out of order", history.search("\"brown fox quick\"").isEmpty());
+   }
+
+   //the log of list changes after it went round its ring more than once
+   static void changesSince() {
+      ChatServer.ClientList list = new ChatServer.ClientList();
+      ChatServer.Client alice = client("alice", null), bob = client("bob", null);
+      ChatServer.Client everybody = client("carol", null);
+      ChatServer.Client aliceOnly = client("dave", new HashSet<String>(Arrays.asList("alice")));
+      int size = ChatServer.ClientList.LOG_SIZE;
+      for (int i = 1; i <= 2*size + 100; i++)
+         list.record(i % 2 == 0 ? alice : bob, "change " + i + "\n");
+      long version = list.version;
+      String end = "version\n" + list.versionString(version) + "\n";
+
+      String changes = list.changesSince(list.versionString(version - size), everybody);
+      boolean all = changes != null && changes.endsWith(end)
+            && changes.startsWith("change " + (version - size + 1) + "\nchange " + (version - size + 2) + "\n");
+      check("ClientList: the oldest changes still in the log", all
+            && changes.split("\n").length == size + 2);
+      check("ClientList: a version older than the log", list.changesSince(list.versionString(version - size - 1),
+            everybody) == null);
+      check("ClientList: the latest version", end.equals(list.changesSince(list.versionString(version), everybody)));
+      check("ClientList: a version not made yet", list.changesSince(list.versionString(version + 1), everybody) == null);
+      check("ClientList: a version of another server run", list.changesSince("0:" + version, everybody) == null);
+
+      StringBuilder fromAlice = new StringBuilder(), fromBob = new StringBuilder();
+      for (long i = version - 9; i <= version; i++)
+         (i % 2 == 0 ? fromAlice : fromBob).append("change " + i + "\n");
+      check("ClientList: only the names subscribed to",
+            (fromAlice + end).equals(list.changesSince(list.versionString(version - 10), aliceOnly)));
+      check("ClientList: not the changes about the client itself",
+            (fromBob + end).equals(list.changesSince(list.versionString(version - 10), alice)));
+   }
+
+   static void tokenBucket() {
+      ChatServer.TokenBucket bucket = new ChatServer.TokenBucket(3, 2); //3 at once, 2 a second after
+      long now = bucket.lastRefill;
+      boolean burst = bucket.tryTake(now) && bucket.tryTake(now) && bucket.tryTake(now);
+      check("TokenBucket: a full bucket gives its capacity", burst && !bucket.tryTake(now));
+      check("TokenBucket: has() takes nothing", !bucket.has(now + 499) && bucket.has(now + 500)
+            && bucket.has(now + 500) && bucket.tryTake(now + 500) && !bucket.has(now + 500));
+      int taken = 0;
+      while (bucket.tryTake(now + 60000))
+         taken++;
+      check("TokenBucket: no more than the capacity after a long wait", taken == 3);
+   }
+
+   //a log that goes over its size in bytes, with old files that move up one
+   static void eventLog() throws Exception {
+      File dir = Files.createTempDirectory("chattests").toFile();
+      String name = new File(dir, "chatserver.log").getPath();
+      for (int i = 1; i <= ChatServer.EventLog.KEPT_FILES; i++)
+         Files.write(Paths.get(name + "." + i), ("old " + i).getBytes("UTF-8"));
+      char[] wide = new char[1000];
+      Arrays.fill(wide, '\u00e9'); //two bytes in UTF-8, so the size is only reached when bytes are counted
+      String detail = new String(wide);
+      int events = (int)(ChatServer.EventLog.MAX_FILE_SIZE / 1000 / 2 * 11 / 10); //10% over in bytes
+      ChatServer.EventLog log = new ChatServer.EventLog(name);
+      for (int i = 0; i < events; i++) {
+         log.add(ChatServer.EventLog.ERROR, i, detail);
+         while (log.claimed.get() - log.written > ChatServer.EventLog.CAPACITY / 2) //don't let it drop any
+            Thread.sleep(1);
+      }
+      log.close();
+      File rotated = new File(name + ".1");
+      check("EventLog: a new file after the size in bytes", rotated.length() > ChatServer.EventLog.MAX_FILE_SIZE
+            && rotated.length() < ChatServer.EventLog.MAX_FILE_SIZE + 2100 && new File(name).length() > 0);
+      check("EventLog: nothing dropped", log.dropped.get() == 0
+            && lines(rotated) + lines(new File(name)) == events);
+      boolean moved = new String(Files.readAllBytes(Paths.get(name + ".2")), "UTF-8").equals("old 1")
+            && new String(Files.readAllBytes(Paths.get(name + "." + ChatServer.EventLog.KEPT_FILES)), "UTF-8")
+                  .equals("old " + (ChatServer.EventLog.KEPT_FILES - 1))
+            && !new File(name + "." + (ChatServer.EventLog.KEPT_FILES + 1)).exists();
+      check("EventLog: old files move up, the oldest goes", moved);
+   }
+
+   static int lines(File file) throws IOException {
+      return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size();
+   }
+
+   static ChatServer.Client client(String name, Set<String> subscription) {
+      ChatServer.Client client = new ChatServer.Client(null);
+      client.name = name;
+      client.subscription = subscription;
+      return client;
+   }
+
+   static void lineReader() throws IOException {
+      LineReader in = new LineReader(trickle("abc\r\ndef\nx\ry\r\n\r\nlast\r"), 100);
+      check("LineReader: \\r\\n split over reads", "abc".equals(in.readLine()));
+      check("LineReader: \\n alone", "def".equals(in.readLine()));
+      check("LineReader: \\r inside a line is kept", "x\ry".equals(in.readLine()));
+      check("LineReader: empty line", "".equals(in.readLine()));
+      check("LineReader: \\r before the end of the stream", "last\r".equals(in.readLine()));
+      check("LineReader: end of the stream", in.readLine() == null);
+
+      in = new LineReader(new ByteArrayInputStream("ab\r\ncdef\n".getBytes("UTF-8")), 100);
+      StringBuilder part = new StringBuilder();
+      boolean parts = in.read(part, 3) == LineReader.PART && in.read(part, 3) == LineReader.LINE;
+      check("LineReader: \\r\\n split over parts", parts && part.toString().equals("ab"));
+
+      in = new LineReader(trickle("12345\r\n123456\r\n"), 5);
+      boolean tooLong = false;
+      try {
+         check("LineReader: a line of the limit", "12345".equals(in.readLine()));
+         in.readLine();
+      }
+      catch (IOException e) {
+         tooLong = true;
+      }
+      check("LineReader: a line over the limit", tooLong);
+   }
+
+}
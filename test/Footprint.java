@@ -0,0 +1,48 @@
+import java.io.*;
+import java.net.*;
+import java.util.ArrayList;
+
+/**
+ *
+ * Footprint.java: Opens many idle client connections to a running ChatServer and holds them, to measure
+ * the server's heap per connected client. The clients subscribe to a name nobody has, so the server
+ * sends them no news about each other. From the directory of the sources:
+ *    javac -d out *.java test/*.java
+ *    java -cp out ChatServer 5000 &
+ *    jcmd <server pid> GC.class_histogram | tail -1
+ *    java -cp out Footprint 10000 [host [port]]
+ *    jcmd <server pid> GC.class_histogram | tail -1
+ * The difference of the two totals (live bytes after a full collection), divided by the number of
+ * clients, is the heap each one costs. The client and the server each need a file per connection.
+ *
+ */
+
+
+public class Footprint {
+
+   public static void main(String[] args) throws Exception {
+      int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+      String host = args.length > 1 ? args[1] : "127.0.0.1";
+      int port = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+      ArrayList<Socket> held = new ArrayList<Socket>();
+      for (int i = 0; i < count; i++) {
+         Socket socket = new Socket(host, port);
+         LineReader in = new LineReader(socket.getInputStream(), 8192);
+         PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+         in.readLine(); //"ChatServer"
+         out.print("ChatClient - nobody.here\nuser" + i + "\n" + (10000 + i % 50000) + "\n");
+         out.flush();
+         in.readLine(); //the secret
+         String line;
+         while ((line = in.readLine()) != null && !line.equals("version")) //the list, empty
+            ;
+         in.readLine();
+         held.add(socket);
+      }
+      System.out.println(count + " clients connected, measure the server now. Enter ends.");
+      new BufferedReader(new InputStreamReader(System.in)).readLine();
+      for (Socket socket : held)
+         socket.close();
+   }
+
+}